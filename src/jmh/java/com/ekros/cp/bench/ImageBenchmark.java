@@ -0,0 +1,96 @@
+package com.ekros.cp.bench;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.util.MountedFileSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading an image holding {@code files} files of one block each. {@code save} writes
+ * them all into a fresh image and unmounts it; {@code mount} mounts the saved image, which reads
+ * no inodes, and {@code load} mounts it and reads every inode.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImageBenchmark {
+
+  private static final int BLOCK_SIZE = 512;
+
+  @Param({"100", "1000", "10000"})
+  private int files;
+
+  private Path dir;
+  private Path saved;
+  private Geometry geometry;
+  private ByteBuffer block;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("image-bench");
+    saved = dir.resolve("saved");
+    geometry = new Geometry(BLOCK_SIZE, files * 2, files + 16, 32, 4);
+    block = ByteBuffer.allocate(BLOCK_SIZE);
+    save(saved);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (var paths = Files.walk(dir)) {
+      paths.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    save(dir.resolve("image"));
+  }
+
+  @Benchmark
+  public int mount() throws IOException {
+    try (MountedFileSystem mounted = MountedFileSystem.mount(saved)) {
+      return mounted.getFileSystem().getAllocator().getFreeCount();
+    }
+  }
+
+  @Benchmark
+  public int load() throws IOException {
+    try (MountedFileSystem mounted = MountedFileSystem.mount(saved)) {
+      return mounted.getFileSystem().getDescriptors().size();
+    }
+  }
+
+  private void save(Path path) throws IOException {
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path, geometry)) {
+      FileSystem fileSystem = mounted.getFileSystem();
+      for (int i = 0; i < files; i++) {
+        fileSystem.addFile("f" + i);
+        fileSystem.truncate("f" + i, BLOCK_SIZE);
+        int fd = fileSystem.openFile("f" + i);
+        fileSystem.write(fd, 0, block.clear());
+        fileSystem.closeFile(fd);
+      }
+      mounted.unmount();
+    }
+  }
+}
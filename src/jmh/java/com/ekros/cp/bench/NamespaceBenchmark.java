@@ -0,0 +1,56 @@
+package com.ekros.cp.bench;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.HeapBlockDevice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creating and removing one name in a directory that already holds {@code entries} names.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NamespaceBenchmark {
+
+  @Param({"16", "1024", "16384"})
+  private int entries;
+
+  private FileSystem fileSystem;
+
+  @Setup
+  public void setup() {
+    Geometry geometry = new Geometry(64, 1024, entries + 16, 32, 4);
+    fileSystem = new FileSystem(geometry, new HeapBlockDevice(64, 1024));
+    fileSystem.createDirectory("dir");
+    for (int i = 0; i < entries; i++) {
+      fileSystem.addFile("dir/f" + i);
+    }
+  }
+
+  @Benchmark
+  public boolean addFile() {
+    fileSystem.addFile("dir/new");
+    return fileSystem.unlink("dir/new");
+  }
+
+  @Benchmark
+  public boolean createDirectory() {
+    fileSystem.createDirectory("dir/sub");
+    return fileSystem.removeDirectory("dir/sub");
+  }
+}
@@ -0,0 +1,69 @@
+package com.ekros.cp.bench;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.HeapBlockDevice;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolving a file {@code depth} directories down, reached through a chain of {@code symlinks}
+ * symlinks. {@code cached} resolves the same path every time and is served by the dentry cache;
+ * {@code walk} clears the cache first, so every component is looked up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathBenchmark {
+
+  @Param({"1", "8", "32"})
+  private int depth;
+
+  @Param({"0", "4"})
+  private int symlinks;
+
+  private FileSystem fileSystem;
+  private String path;
+
+  @Setup
+  public void setup() {
+    Geometry geometry = new Geometry(64, 1024, depth + symlinks + 16, 32, 4);
+    fileSystem = new FileSystem(geometry, new HeapBlockDevice(64, 1024));
+    StringBuilder dir = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      dir.append(i == 0 ? "" : "/").append("d").append(i);
+      fileSystem.createDirectory(dir.toString());
+    }
+    fileSystem.addFile(dir + "/file");
+    String target = dir.toString();
+    for (int i = 0; i < symlinks; i++) {
+      fileSystem.createSymlink(target, "s" + i);
+      target = "s" + i;
+    }
+    path = target + "/file";
+  }
+
+  @Benchmark
+  public boolean cached() {
+    return fileSystem.closeFile(fileSystem.openFile(path));
+  }
+
+  @Benchmark
+  public boolean walk() {
+    fileSystem.getDentries().clear();
+    return fileSystem.closeFile(fileSystem.openFile(path));
+  }
+}
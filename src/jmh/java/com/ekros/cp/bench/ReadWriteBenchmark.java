@@ -0,0 +1,66 @@
+package com.ekros.cp.bench;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.DirectBlockDevice;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Positional reads and writes of {@code size} bytes at {@code offset} into a file that is fully
+ * allocated, so no block is allocated while measuring.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadWriteBenchmark {
+
+  private static final int BLOCK_SIZE = 4096;
+  private static final int BLOCKS = 1024;
+
+  @Param({"0", "65536", "2097152"})
+  private int offset;
+
+  @Param({"64", "4096", "65536"})
+  private int size;
+
+  private FileSystem fileSystem;
+  private int fd;
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setup() {
+    Geometry geometry = new Geometry(BLOCK_SIZE, BLOCKS, 16, 32, 4);
+    fileSystem = new FileSystem(geometry, new DirectBlockDevice(BLOCK_SIZE, BLOCKS));
+    fileSystem.addFile("file");
+    fileSystem.truncate("file", BLOCK_SIZE * BLOCKS);
+    fd = fileSystem.openFile("file");
+    ByteBuffer fill = ByteBuffer.allocate(BLOCK_SIZE * BLOCKS);
+    fileSystem.write(fd, 0, fill);
+    buffer = ByteBuffer.allocate(size);
+  }
+
+  @Benchmark
+  public int write() {
+    return fileSystem.write(fd, offset, buffer.clear());
+  }
+
+  @Benchmark
+  public int read() {
+    return fileSystem.read(fd, offset, buffer.clear());
+  }
+}
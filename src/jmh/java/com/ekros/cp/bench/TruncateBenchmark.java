@@ -0,0 +1,63 @@
+package com.ekros.cp.bench;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.HeapBlockDevice;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Growing an empty file to {@code size} bytes and back. {@code grow} only extends the file, which
+ * stays sparse; {@code shrink} first writes it full, so every block has to be released.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TruncateBenchmark {
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int BLOCKS = 8192;
+
+  @Param({"4096", "262144", "4194304"})
+  private int size;
+
+  private FileSystem fileSystem;
+  private int fd;
+  private ByteBuffer data;
+
+  @Setup
+  public void setup() {
+    Geometry geometry = new Geometry(BLOCK_SIZE, BLOCKS, 16, 32, 4);
+    fileSystem = new FileSystem(geometry, new HeapBlockDevice(BLOCK_SIZE, BLOCKS));
+    fileSystem.addFile("file");
+    fd = fileSystem.openFile("file");
+    data = ByteBuffer.allocate(size);
+  }
+
+  @Benchmark
+  public boolean grow() {
+    fileSystem.truncate("file", size);
+    return fileSystem.truncate("file", 0);
+  }
+
+  @Benchmark
+  public boolean shrink() {
+    fileSystem.truncate("file", size);
+    fileSystem.write(fd, 0, data.clear());
+    return fileSystem.truncate("file", 0);
+  }
+}
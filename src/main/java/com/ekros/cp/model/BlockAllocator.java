@@ -0,0 +1,145 @@
+package com.ekros.cp.model;
+
+import java.util.Arrays;
+import lombok.Getter;
+
+/**
+ * Free block bitmap. One bit per block, scanned a word at a time starting from the lowest word
+ * that may still contain a free bit.
+ */
+public class BlockAllocator {
+
+  private static final int WORD_BITS = Long.SIZE;
+
+  private final long[] words;
+  @Getter
+  private final int size;
+  @Getter
+  private int freeCount;
+  private int hint;
+  @Getter
+  private long allocated;
+  @Getter
+  private long freed;
+
+  public BlockAllocator(int size) {
+    this.size = size;
+    this.words = new long[(size + WORD_BITS - 1) / WORD_BITS];
+    clear();
+  }
+
+  public BlockAllocator(int size, long[] words) {
+    this.size = size;
+    this.words = words;
+    for (long word : words) {
+      freeCount += Long.bitCount(~word);
+    }
+    freeCount -= words.length * WORD_BITS - size;
+  }
+
+  public int allocate() {
+    if (freeCount == 0) {
+      return -1;
+    }
+    for (int w = hint; w < words.length; w++) {
+      long word = words[w];
+      if (word != -1L) {
+        int index = w * WORD_BITS + Long.numberOfTrailingZeros(~word);
+        if (index >= size) {
+          break;
+        }
+        words[w] = word | (1L << index);
+        freeCount--;
+        allocated++;
+        hint = w;
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  public int allocateRun(int count) {
+    if (count <= 0 || count > freeCount) {
+      return -1;
+    }
+    int start = nextFree(hint * WORD_BITS);
+    while (start != -1 && start + count <= size) {
+      int end = nextUsed(start, start + count);
+      if (end == start + count) {
+        mark(start, count);
+        allocated += count;
+        return start;
+      }
+      start = nextFree(end);
+    }
+    return -1;
+  }
+
+  public void free(int index) {
+    long mask = 1L << index;
+    int w = index / WORD_BITS;
+    if ((words[w] & mask) != 0) {
+      words[w] &= ~mask;
+      freeCount++;
+      freed++;
+      if (w < hint) {
+        hint = w;
+      }
+    }
+  }
+
+  public void free(int start, int count) {
+    for (int i = start; i < start + count; i++) {
+      free(i);
+    }
+  }
+
+  public boolean isUsed(int index) {
+    return (words[index / WORD_BITS] & (1L << index)) != 0;
+  }
+
+  public void clear() {
+    Arrays.fill(words, 0L);
+    freeCount = size;
+    hint = 0;
+  }
+
+  private void mark(int start, int count) {
+    for (int i = start; i < start + count; i++) {
+      words[i / WORD_BITS] |= 1L << i;
+    }
+    freeCount -= count;
+  }
+
+  private int nextFree(int from) {
+    int w = from / WORD_BITS;
+    if (w >= words.length) {
+      return -1;
+    }
+    long word = ~words[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        int index = w * WORD_BITS + Long.numberOfTrailingZeros(word);
+        return index < size ? index : -1;
+      }
+      if (++w == words.length) {
+        return -1;
+      }
+      word = ~words[w];
+    }
+  }
+
+  private int nextUsed(int from, int limit) {
+    int w = from / WORD_BITS;
+    long word = words[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        return Math.min(w * WORD_BITS + Long.numberOfTrailingZeros(word), limit);
+      }
+      if (++w == words.length || w * WORD_BITS >= limit) {
+        return limit;
+      }
+      word = words[w];
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.ekros.cp.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of resolved paths, relative to the current directory. Paths that failed to
+ * resolve are kept as negative entries in a separate map, so creating a name only has to drop
+ * those, while removing one drops the positive entries. Every change also bumps the namespace
+ * generation, which invalidates the targets cached on symlinks.
+ *
+ * <p>Large caches are split into independently locked segments by path hash, so concurrent
+ * lookups rarely contend on the same LRU list.
+ */
+public class DentryCache {
+
+  public static final int CAPACITY = Integer.getInteger("fs.dcache.size", 256);
+  public static final Descriptor MISSING = new Descriptor(false, false, null, 0, null, null);
+
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_CAPACITY = 16;
+
+  private final Segment[] segments;
+  private final AtomicInteger generation = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public DentryCache() {
+    this(CAPACITY);
+  }
+
+  public DentryCache(int capacity) {
+    int count = Integer.highestOneBit(
+        Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_CAPACITY)));
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      segments[i] = new Segment(Math.max(1, capacity / count));
+    }
+  }
+
+  /**
+   * Returns the cached descriptor, {@link #MISSING} for a negative entry or {@code null} if
+   * the path is not cached.
+   */
+  public Descriptor get(CharSequence path) {
+    Descriptor descriptor = segment(path).get(path);
+    if (descriptor == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return descriptor;
+  }
+
+  public void put(String path, Descriptor descriptor) {
+    segment(path).put(path, descriptor);
+  }
+
+  /**
+   * A name was added, so any negative entry may now resolve.
+   */
+  public void added() {
+    generation.incrementAndGet();
+    for (Segment segment : segments) {
+      segment.clear(false, true);
+    }
+  }
+
+  /**
+   * A name was removed. Besides the path itself, {@code ..} and symlinks can route other paths
+   * through it, so every positive entry goes.
+   */
+  public void removed() {
+    generation.incrementAndGet();
+    for (Segment segment : segments) {
+      segment.clear(true, false);
+    }
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    for (Segment segment : segments) {
+      segment.clear(true, true);
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  public int getGeneration() {
+    return generation.get();
+  }
+
+  public int getHits() {
+    return hits.intValue();
+  }
+
+  public int getMisses() {
+    return misses.intValue();
+  }
+
+  private Segment segment(CharSequence path) {
+    int hash = path.hashCode();
+    return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+  }
+
+  private static class Segment {
+
+    private final Map<String, Descriptor> positive;
+    private final Map<String, Boolean> negative;
+
+    Segment(int capacity) {
+      positive = new Lru<>(capacity);
+      negative = new Lru<>(capacity);
+    }
+
+    synchronized Descriptor get(CharSequence path) {
+      Descriptor descriptor = positive.get(path);
+      if (descriptor == null && negative.get(path) != null) {
+        descriptor = MISSING;
+      }
+      return descriptor;
+    }
+
+    synchronized void put(String path, Descriptor descriptor) {
+      if (descriptor == null) {
+        negative.put(path, Boolean.TRUE);
+      } else {
+        positive.put(path, descriptor);
+      }
+    }
+
+    synchronized void clear(boolean positives, boolean negatives) {
+      if (positives) {
+        positive.clear();
+      }
+      if (negatives) {
+        negative.clear();
+      }
+    }
+
+    synchronized int size() {
+      return positive.size() + negative.size();
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private static class Lru<V> extends LinkedHashMap<String, V> {
+
+    private final int capacity;
+
+    Lru(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+      return size() > capacity;
+    }
+  }
+}
@@ -1,74 +1,140 @@
 package com.ekros.cp.model;
 
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import lombok.AccessLevel;
 import lombok.Getter;
+import lombok.Setter;
 
 @Getter
-public class Descriptor implements Serializable {
+public class Descriptor {
+  private int id = -1;
   private final boolean isDirectory;
   private final boolean isSymlink;
   private int size;
+  @Setter
+  private int linksAmount;
+  private int openCount;
   private final Descriptor prev;
+  @Getter(AccessLevel.NONE)
   private final Map<String, Descriptor> nameLinks;
-  private final List<Integer> blockLinks;
+  @Getter(AccessLevel.NONE)
+  private volatile Consumer<Map<String, Descriptor>> entryLoader;
+  private final Extents extents;
   private final String symlink;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  @Getter(AccessLevel.NONE)
+  private Descriptor target;
+  @Getter(AccessLevel.NONE)
+  private int targetGeneration;
 
   public Descriptor(boolean isDirectory, boolean isSymlink, Integer blockLink, int size, Descriptor prev, String symlink){
-    this.blockLinks = new ArrayList<>();
+    this.extents = new Extents();
     this.isDirectory = isDirectory;
     this.isSymlink = isSymlink;
-    this.size = formatSize(size);
+    this.size = size;
     this.prev = prev;
     this.symlink = symlink;
-    nameLinks = new HashMap<>();
+    nameLinks = new ConcurrentHashMap<>();
     if(blockLink != null){
-      blockLinks.add(blockLink);
+      extents.append(blockLink, 1);
     }
   }
 
-  public boolean contains(String name){
-    return nameLinks.containsKey(name);
+  void setId(int id){
+    this.id = id;
   }
 
-  public boolean contains(Descriptor descriptor){
-    return nameLinks.containsValue(descriptor);
+  public int getParentId(){
+    return prev == null ? -1 : prev.getId();
   }
 
-  public void addDescriptor(String name, Descriptor descriptor){
-    nameLinks.put(name, descriptor);
+  /**
+   * Leaves the entries of this directory unread until they are first needed. {@code loader} then
+   * runs once, with the empty entry map to fill.
+   */
+  public void deferEntries(Consumer<Map<String, Descriptor>> loader){
+    entryLoader = loader;
   }
 
-  public Descriptor removeDescriptor(String name){
-    return nameLinks.remove(name);
+  public boolean isLoaded(){
+    return entryLoader == null;
   }
 
-  public Set<String> getDescriptorLinks(Descriptor descriptor){
-    Set<String> keySet = new HashSet<>();
-    for (Entry<String, Descriptor> entry : nameLinks.entrySet()) {
-      if(descriptor.equals(entry.getValue())){
-        keySet.add(entry.getKey());
+  /**
+   * Reads deferred entries now. Returns true only if this call read them.
+   */
+  public boolean load(){
+    if (entryLoader != null) {
+      synchronized (this) {
+        Consumer<Map<String, Descriptor>> loader = entryLoader;
+        if (loader != null) {
+          loader.accept(nameLinks);
+          entryLoader = null;
+          return true;
+        }
       }
     }
-    return keySet;
+    return false;
+  }
+
+  public Map<String, Descriptor> getNameLinks(){
+    load();
+    return nameLinks;
+  }
+
+  public boolean contains(CharSequence name){
+    return getNameLinks().containsKey(name);
+  }
+
+  public void addDescriptor(String name, Descriptor descriptor){
+    getNameLinks().put(name, descriptor);
+  }
+
+  public Descriptor removeDescriptor(String name){
+    return getNameLinks().remove(name);
+  }
+
+  public Descriptor getByName(CharSequence name){
+    return getNameLinks().get(name);
+  }
+
+  public int incrementLinks(){
+    return ++linksAmount;
+  }
+
+  public int decrementLinks(){
+    return --linksAmount;
+  }
+
+  void incrementOpenCount(){
+    openCount++;
+  }
+
+  void decrementOpenCount(){
+    openCount--;
+  }
+
+  /**
+   * Returns what this symlink resolved to, if it was resolved in the given namespace generation.
+   */
+  Descriptor getTarget(int generation){
+    return target != null && targetGeneration == generation ? target : null;
   }
 
-  public Descriptor getByName(String name){
-    return nameLinks.get(name);
+  void setTarget(Descriptor target, int generation){
+    this.target = target;
+    this.targetGeneration = generation;
   }
 
   public void setSize(int size){
-    this.size = formatSize(size);
+    this.size = size;
   }
 
-  public static int formatSize(int size){
-    return (int) (Block.MAX_BLOCK_SIZE*(Math.ceil(Math.abs((double) size/Block.MAX_BLOCK_SIZE))));
+  public static int formatSize(int size, int blockSize){
+    return (int) (blockSize*(Math.ceil(Math.abs((double) size/blockSize))));
   }
 
   @Override
@@ -76,6 +142,7 @@ public class Descriptor implements Serializable {
     return "Descriptor{" +
         "isDirectory=" + isDirectory +
         ", size=" + size +
+        ", blocks=" + extents.getBlockCount() +
         '}';
   }
 }
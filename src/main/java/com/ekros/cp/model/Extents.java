@@ -0,0 +1,196 @@
+package com.ekros.cp.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Block mapping of a file as {@code (logical, start, length)} runs sorted by logical block.
+ * Logical block {@code logical + i} of a run is stored in physical block {@code start + i}.
+ * Adjacent runs that are contiguous on both sides are merged, so a sequentially allocated file is
+ * a handful of runs and finding the block behind an offset is a binary search.
+ */
+public class Extents {
+
+  private int[] logical = new int[1];
+  private int[] starts = new int[1];
+  private int[] lengths = new int[1];
+  private int size;
+  private int blockCount;
+
+  /**
+   * Number of runs.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Number of mapped blocks.
+   */
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  public int getLogical(int extent) {
+    return logical[extent];
+  }
+
+  public int getStart(int extent) {
+    return starts[extent];
+  }
+
+  public int getLength(int extent) {
+    return lengths[extent];
+  }
+
+  /**
+   * Logical block right after the last mapped one.
+   */
+  public int end() {
+    return size == 0 ? 0 : logical[size - 1] + lengths[size - 1];
+  }
+
+  /**
+   * Returns the physical block holding logical block {@code index}, or {@code -1} if it is not
+   * mapped.
+   */
+  public int get(int index) {
+    int extent = find(index);
+    return extent == -1 ? -1 : starts[extent] + index - logical[extent];
+  }
+
+  /**
+   * Returns the run holding logical block {@code index}, or {@code -1} if it is not mapped.
+   */
+  public int find(int index) {
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      if (logical[middle] > index) {
+        high = middle - 1;
+      } else if (logical[middle] + lengths[middle] <= index) {
+        low = middle + 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Maps {@code count} logical blocks from {@code index} onto physical blocks from {@code start}.
+   * The range must not be mapped yet. Returns the run that now holds it.
+   */
+  public int add(int index, int start, int count) {
+    int extent = insertionPoint(index);
+    blockCount += count;
+    if (extent > 0 && logical[extent - 1] + lengths[extent - 1] == index
+        && starts[extent - 1] + lengths[extent - 1] == start) {
+      lengths[--extent] += count;
+    } else {
+      ensureCapacity(size + 1);
+      System.arraycopy(logical, extent, logical, extent + 1, size - extent);
+      System.arraycopy(starts, extent, starts, extent + 1, size - extent);
+      System.arraycopy(lengths, extent, lengths, extent + 1, size - extent);
+      logical[extent] = index;
+      starts[extent] = start;
+      lengths[extent] = count;
+      size++;
+    }
+    int next = extent + 1;
+    if (next < size && logical[extent] + lengths[extent] == logical[next]
+        && starts[extent] + lengths[extent] == starts[next]) {
+      lengths[extent] += lengths[next];
+      remove(next);
+    }
+    return extent;
+  }
+
+  public int append(int start, int count) {
+    return add(end(), start, count);
+  }
+
+  public void addAll(Extents other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.logical[i], other.starts[i], other.lengths[i]);
+    }
+  }
+
+  /**
+   * Unmaps every logical block from {@code index} on, passing each released physical block to
+   * {@code released}. Returns the number of runs left.
+   */
+  public int truncate(int index, IntConsumer released) {
+    while (size > 0 && logical[size - 1] + lengths[size - 1] > index) {
+      int last = size - 1;
+      int keep = Math.max(0, index - logical[last]);
+      for (int i = keep; i < lengths[last]; i++) {
+        released.accept(starts[last] + i);
+      }
+      blockCount -= lengths[last] - keep;
+      if (keep == 0) {
+        size--;
+      } else {
+        lengths[last] = keep;
+      }
+    }
+    return size;
+  }
+
+  public void forEach(IntConsumer consumer) {
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < lengths[i]; j++) {
+        consumer.accept(starts[i] + j);
+      }
+    }
+  }
+
+  /**
+   * Physical blocks in logical order.
+   */
+  public int[] toArray() {
+    int[] blocks = new int[blockCount];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < lengths[i]; j++) {
+        blocks[count++] = starts[i] + j;
+      }
+    }
+    return blocks;
+  }
+
+  private int insertionPoint(int index) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (logical[middle] < index) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private void remove(int extent) {
+    System.arraycopy(logical, extent + 1, logical, extent, size - extent - 1);
+    System.arraycopy(starts, extent + 1, starts, extent, size - extent - 1);
+    System.arraycopy(lengths, extent + 1, lengths, extent, size - extent - 1);
+    size--;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > logical.length) {
+      int length = Math.max(capacity, logical.length * 2);
+      logical = Arrays.copyOf(logical, length);
+      starts = Arrays.copyOf(starts, length);
+      lengths = Arrays.copyOf(lengths, length);
+    }
+  }
+}
@@ -1,81 +1,202 @@
 package com.ekros.cp.model;
 
+import com.ekros.cp.storage.BlockDevice;
+import com.ekros.cp.storage.HeapBlockDevice;
 import com.ekros.cp.util.Log;
-import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import lombok.AccessLevel;
 import lombok.Getter;
 
 @Getter
-public class FileSystem implements Serializable {
+public class FileSystem {
+
+  public static final int MAX_DESCRIPTORS = 5;
+  public static final int MAX_BLOCKS = 10;
+  public static final int MAX_BLOCK_SIZE = 8;
+  public static final int MAX_LINKS_AMOUNT = 3;
+  public static final int MAX_FILE_NAME_LENGTH = 10;
+  public static final int MAX_SYMLINK_HOPS = 40;
+
+  private final Geometry geometry;
+  private final InodeTable descriptors;
+  private final BlockDevice device;
+  private final BlockAllocator allocator;
+  private volatile Descriptor directory;
+  private final OpenFileTable openFiles;
+  private final DentryCache dentries;
+  private final MetadataStore store;
+  @Getter(AccessLevel.NONE)
+  private final ReentrantReadWriteLock namespace = new ReentrantReadWriteLock();
+  @Getter(AccessLevel.NONE)
+  private final ThreadLocal<Scratch> scratch;
 
-  public static final transient int MAX_DESCRIPTORS = 5;
-  public static final transient int MAX_BLOCKS = 10;
-  public static final transient int MAX_LINKS_AMOUNT = 3;
-  public static final transient int MAX_FILE_NAME_LENGTH = 10;
+  public FileSystem() {
+    this(Geometry.DEFAULT);
+  }
+
+  public FileSystem(Geometry geometry) {
+    this(geometry, new HeapBlockDevice(geometry.getBlockSize(), geometry.getBlockCount()));
+  }
 
-  private final Map<Integer, Descriptor> descriptors;
-  private final List<Block> blocks;
-  private Descriptor directory;
-  private final Map<Integer, Descriptor> openFiles;
+  public FileSystem(Geometry geometry, BlockDevice device) {
+    this(geometry, device, new BlockAllocator(device.getBlockCount()),
+        new Descriptor(true, false, null, 0, null, null),
+        new InodeTable(geometry.getInodeCount()), new MetadataStore() {
+        });
+  }
 
-  public FileSystem() {
-    directory = new Descriptor(true, false, null, 0, null, null);
-    descriptors = new HashMap<>();
-    blocks = new ArrayList<>();
-    openFiles = new HashMap<>();
-    init();
+  public FileSystem(Geometry geometry, BlockDevice device, BlockAllocator allocator,
+      Descriptor root, InodeTable descriptors, MetadataStore store) {
+    this.geometry = geometry;
+    this.device = device;
+    this.allocator = allocator;
+    this.directory = root;
+    this.descriptors = descriptors;
+    this.store = store;
+    openFiles = new OpenFileTable();
+    dentries = new DentryCache();
+    scratch = ThreadLocal.withInitial(() -> new Scratch(geometry.getBlockSize()));
   }
 
   public boolean changeDirectory(String path) {
-    Descriptor descriptor = getByPath(path, false);
-    if (descriptor == null) {
-      return false;
+    namespace.writeLock().lock();
+    try {
+      Descriptor descriptor = getByPath(path, path.length(), false);
+      if (descriptor == null || !descriptor.isDirectory()) {
+        return false;
+      }
+      directory = descriptor;
+      dentries.clear();
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
-    directory = descriptor;
-    return true;
   }
 
   public boolean createSymlink(String str, String path) {
-    if (path == null || str == null) {
-      return false;
+    namespace.writeLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null || str == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
+
+      if (isDescriptorsMax() || !checkName(name, parent)) {
+        return false;
+      }
+
+      byte[] target = str.getBytes(StandardCharsets.UTF_8);
+      Descriptor descriptor = new Descriptor(false, true, null, geometry.formatSize(target.length),
+          parent, str);
+      Extents extents = descriptor.getExtents();
+      int blockSize = geometry.getBlockSize();
+      if (allocateBlocks(extents, descriptor.getSize() / blockSize) == -1) {
+        return false;
+      }
+      for (int i = 0; i < extents.getBlockCount(); i++) {
+        int length = Math.min(blockSize, target.length - i * blockSize);
+        device.write(extents.get(i), 0, ByteBuffer.wrap(target, i * blockSize, length));
+      }
+      descriptors.allocate(descriptor);
+      parent.addDescriptor(name, descriptor);
+      descriptor.incrementLinks();
+      dentries.added();
+      store.blocksChanged(extents, 0);
+      store.inodeChanged(descriptor);
+      store.entryAdded(parent.getId(), name, descriptor.getId());
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
+  }
 
-    if (parent == null || isDescriptorsMax() || !checkName(name, parent)) {
-      return false;
+  public boolean createDirectory(String path) {
+    namespace.writeLock().lock();
+    try {
+      Descriptor descriptor = getByPath(path, path.length(), true);
+      return descriptor != null;
+    } finally {
+      namespace.writeLock().unlock();
     }
+  }
 
-    Descriptor descriptor = new Descriptor(false, true, null,
-        Block.MAX_BLOCK_SIZE, parent, str);
-    int index = getFreeIndex(descriptors);
-    parent.addDescriptor(name, descriptor);
-    descriptors.put(index, descriptor);
-    return true;
+  private Descriptor getByPath(CharSequence path, int end, boolean withCreate) {
+    if (withCreate) {
+      return walk(path, end, true);
+    }
+    Descriptor cached = dentries.get(scratch.get().probe.set(path, 0, end));
+    if (cached != null) {
+      return cached == DentryCache.MISSING ? null : cached;
+    }
+    Descriptor descriptor = walk(path, end, false);
+    dentries.put(path.subSequence(0, end).toString(), descriptor);
+    return descriptor;
   }
 
-  public boolean createDirectory(String path) {
-    Descriptor descriptor = getByPath(path, true);
-    return descriptor != null;
+  /**
+   * Runs {@code action} with the namespace locked for writing. Every operation takes the
+   * namespace lock, so nothing changes the tree, the block map or file data while it runs.
+   */
+  public void exclusive(Runnable action) {
+    namespace.writeLock().lock();
+    try {
+      action.run();
+    } finally {
+      namespace.writeLock().unlock();
+    }
   }
 
-  private Descriptor getByPath(String path, boolean withCreate) {
-    Descriptor descriptor = directory;
-    if (path.startsWith("~/")) {
-      descriptor = getRoot();
-      path = path.substring(2);
+  /**
+   * Reads every directory reachable from the root, and with them every inode in the tree, so
+   * later lookups on a lazily mounted image never wait for the disk. The namespace is locked for
+   * one directory at a time, so operations keep running meanwhile. Directories already read are
+   * still walked, since their subdirectories may not be. Stops early once {@code cancelled}
+   * returns true and returns the number of directories this call read.
+   */
+  public int prefetch(BooleanSupplier cancelled) {
+    Deque<Descriptor> pending = new ArrayDeque<>();
+    namespace.readLock().lock();
+    try {
+      pending.push(getRoot());
+    } finally {
+      namespace.readLock().unlock();
+    }
+    int count = 0;
+    while (!pending.isEmpty()) {
+      if (cancelled.getAsBoolean()) {
+        return count;
+      }
+      Descriptor directory = pending.pop();
+      namespace.readLock().lock();
+      try {
+        if (directory.load()) {
+          count++;
+        }
+        for (Descriptor child : directory.getNameLinks().values()) {
+          if (child.isDirectory()) {
+            pending.push(child);
+          }
+        }
+      } finally {
+        namespace.readLock().unlock();
+      }
     }
-    return pathDescriptor(path, descriptor, withCreate, false);
+    return count;
   }
 
-  private Descriptor getRoot() {
+  public Descriptor getRoot() {
     Descriptor descriptor = directory;
     while (descriptor.getPrev() != null) {
       descriptor = descriptor.getPrev();
@@ -83,289 +204,544 @@ public class FileSystem implements Serializable {
     return descriptor;
   }
 
-  private Descriptor pathDescriptor(String path, Descriptor descriptor, boolean withCreate, boolean isFile) {
-    if(path.startsWith("/")){
+  /**
+   * Resolves the first {@code end} characters of {@code path} in a single pass. A symlink is
+   * expanded in place: the rest of the current path is pushed, its target is walked from the
+   * directory holding it, and the rest is resumed once the target is exhausted. The result is
+   * then cached on the symlink until the namespace changes. Like ELOOP, more than
+   * {@link #MAX_SYMLINK_HOPS} expansions fail the lookup.
+   */
+  private Descriptor walk(CharSequence path, int end, boolean withCreate) {
+    if (end > 0 && path.charAt(0) == '/') {
       return null;
     }
-    if (path.isEmpty()) {
-      return descriptor;
-    }
-
-    String[] pathArray = path.split("/");
-
-    String next = pathArray[0];
-    int indexOf = path.indexOf('/');
-    String nextPath = "";
-    if (pathArray.length != 1 && indexOf != -1) {
-      nextPath = path.substring(indexOf).substring(1);
-    }
-    Descriptor nextDescriptor;
-    if (next.equals("..")) {
-      nextDescriptor = pathDescriptor(nextPath, descriptor.getPrev(), withCreate, isFile);
-    } else if (next.equals(".")) {
-      nextDescriptor = pathDescriptor(nextPath, descriptor, withCreate, isFile);
-    } else if (next.equals("~")) {
-      nextDescriptor = pathDescriptor(nextPath, getRoot(), withCreate, isFile);
-    } else if (pathArray.length == 1) {
-      nextDescriptor = descriptor.getByName(next);
-      if (nextDescriptor == null && !isFile) {
-        if (!withCreate) {
-          return null;
-        }
-        boolean status = createDirectory(next, descriptor);
-        if (!status) {
-          return null;
+    Scratch scratch = this.scratch.get();
+    Descriptor descriptor = directory;
+    CharSequence sequence = path;
+    int position = 0;
+    int limit = end;
+    int depth = 0;
+    int hops = 0;
+    while (true) {
+      if (position >= limit) {
+        if (depth == 0) {
+          return descriptor;
         }
+        depth--;
+        scratch.links[depth].setTarget(descriptor, dentries.getGeneration());
+        sequence = scratch.pending[depth];
+        position = scratch.positions[depth];
+        limit = scratch.limits[depth];
+        continue;
+      }
+      int start = position;
+      while (position < limit && sequence.charAt(position) != '/') {
+        position++;
       }
-      if (nextDescriptor != null && nextDescriptor.isSymlink()) {
-        nextPath = nextDescriptor.getSymlink() + nextPath;
-        nextDescriptor = pathDescriptor(nextPath, descriptor, withCreate, isFile);
-      } else {
-        nextDescriptor = descriptor.getByName(next);
+      PathName name = scratch.probe.set(sequence, start, position++);
+      if (name.length() == 0 || name.is(".")) {
+        continue;
       }
-    } else {
-      nextDescriptor = descriptor.getByName(next);
-      if (nextDescriptor == null) {
-        if (!withCreate) {
+      if (name.is("..")) {
+        descriptor = descriptor.getPrev();
+        if (descriptor == null) {
           return null;
         }
-        boolean status = createDirectory(next, descriptor);
-        if (!status) {
+        continue;
+      }
+      if (name.is("~")) {
+        descriptor = getRoot();
+        continue;
+      }
+      if (!descriptor.isDirectory()) {
+        return null;
+      }
+      Descriptor next = descriptor.getByName(name);
+      if (next == null) {
+        if (!withCreate || !createDirectory(name.toString(), descriptor)) {
           return null;
         }
+        next = descriptor.getByName(name);
+      }
+      if (!next.isSymlink()) {
+        descriptor = next;
+        continue;
+      }
+      Descriptor target = next.getTarget(dentries.getGeneration());
+      if (target != null) {
+        descriptor = target;
+        continue;
+      }
+      if (++hops > MAX_SYMLINK_HOPS) {
+        Log.error("Too many levels of symbolic links [" + path + "]");
+        return null;
       }
-      if (nextDescriptor != null && nextDescriptor.isSymlink()) {
-        nextPath = nextDescriptor.getSymlink() + nextPath;
-        nextDescriptor = pathDescriptor(nextPath, descriptor, withCreate, isFile);
-      } else {
-        nextDescriptor = pathDescriptor(nextPath, descriptor.getByName(next), withCreate, isFile);
+      scratch.pending[depth] = sequence;
+      scratch.positions[depth] = position;
+      scratch.limits[depth] = limit;
+      scratch.links[depth++] = next;
+      sequence = next.getSymlink();
+      if (sequence.length() > 0 && sequence.charAt(0) == '/') {
+        return null;
       }
+      position = 0;
+      limit = sequence.length();
     }
+  }
 
-    return nextDescriptor;
+  /**
+   * Splits {@code path} into the directory holding its last component and the component's
+   * name. Returns {@code null} if the directory does not resolve or the name is not usable.
+   */
+  private Lookup lookup(String path) {
+    if (path == null || path.startsWith("/")) {
+      return null;
+    }
+    int end = path.length();
+    while (end > 0 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    int slash = end - 1;
+    while (slash >= 0 && path.charAt(slash) != '/') {
+      slash--;
+    }
+    PathName name = scratch.get().probe.set(path, slash + 1, end);
+    if (name.length() == 0 || name.is(".") || name.is("..") || name.is("~")) {
+      return null;
+    }
+    String leaf = slash == -1 && end == path.length() ? path : name.toString();
+    Descriptor parent = slash == -1 ? directory : getByPath(path, slash, false);
+    if (parent == null || !parent.isDirectory()) {
+      return null;
+    }
+    return new Lookup(parent, leaf);
   }
 
   public boolean removeDirectory(String path) {
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
-
-    if (parent == null || name == null) {
-      return false;
-    }
+    namespace.writeLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
 
-    Descriptor dir = parent.getByName(name);
+      Descriptor dir = parent.getByName(name);
 
-    if (dir == null || !dir.isDirectory() || dir.getNameLinks().size() > 1) {
-      return false;
+      if (dir == null || !dir.isDirectory() || !dir.getNameLinks().isEmpty()) {
+        return false;
+      }
+      parent.removeDescriptor(name);
+      dentries.removed();
+      dir.decrementLinks();
+      descriptors.release(dir);
+      store.entryRemoved(parent.getId(), name);
+      store.inodeReleased(dir.getId());
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
-    parent.removeDescriptor(name);
-    removeDescriptor(dir);
-    return true;
   }
 
   public boolean addFile(String path) {
-    if (path == null) {
-      return false;
-    }
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
+    namespace.writeLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
 
-    if (parent == null || isDescriptorsMax() || !checkName(name, parent)) {
-      return false;
-    }
+      if (isDescriptorsMax() || !checkName(name, parent)) {
+        return false;
+      }
 
-    int blockId = getFreeBlockId();
+      int blockId = allocateBlock();
 
-    if (blockId == -1) {
-      return false;
+      if (blockId == -1) {
+        return false;
+      }
+      Descriptor descriptor = new Descriptor(false, false, blockId, geometry.getBlockSize(),
+          parent, null);
+      descriptors.allocate(descriptor);
+      parent.addDescriptor(name, descriptor);
+      descriptor.incrementLinks();
+      dentries.added();
+      store.blocksChanged(descriptor.getExtents(), 0);
+      store.inodeChanged(descriptor);
+      store.entryAdded(parent.getId(), name, descriptor.getId());
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
-    blocks.get(blockId).setUsed(true);
-    Descriptor descriptor = new Descriptor(false, false, blockId, Block.MAX_BLOCK_SIZE, parent,
-        null);
-    int index = getFreeIndex(descriptors);
-    parent.addDescriptor(name, descriptor);
-    descriptors.put(index, descriptor);
-    return true;
   }
 
+  /**
+   * Fills {@code [offset, offset + size)} with ones, touching only the blocks in that range.
+   */
   public boolean write(int fd, int offset, int size) {
-    if (!openFiles.containsKey(fd)) {
+    Descriptor descriptor = lockOpen(fd, true);
+    if (descriptor == null) {
       Log.error("Incorrect fd [" + fd + "]");
       return false;
     }
-    String data = getFileData(fd);
-    if (size > data.length() || offset > data.length() || size + offset > data.length()
-        || offset < 0 || size <= 0) {
-      Log.error("Incorrect offset or size");
-      return false;
-    }
-    data = data.substring(0, offset) + "1".repeat(size) + data.substring(offset + size);
-    int dataOffset = 0;
-    for (Block block : getFileBlocks(openFiles.get(fd))) {
-      block.setData(data.substring(dataOffset, dataOffset + Block.MAX_BLOCK_SIZE));
-      dataOffset += Block.MAX_BLOCK_SIZE;
+    try {
+      if (offset < 0 || size <= 0 || (long) offset + size > descriptor.getSize()) {
+        Log.error("Incorrect offset or size");
+        return false;
+      }
+      if (countHoles(descriptor.getExtents(), offset, size) > allocator.getFreeCount()) {
+        Log.error("Not enough free blocks");
+        return false;
+      }
+      ByteBuffer ones = scratch.get().block;
+      Arrays.fill(ones.array(), (byte) 1);
+      for (long position = offset; position < offset + size; ) {
+        int chunk = (int) Math.min(ones.capacity() - position % ones.capacity(),
+            offset + size - position);
+        int written = write(fd, position, ones.clear().limit(chunk));
+        if (written < chunk) {
+          return false;
+        }
+        position += written;
+      }
+      return true;
+    } finally {
+      unlock(descriptor, true);
     }
-    return true;
   }
 
   public String read(int fd, int offset, int size) {
-    if (!openFiles.containsKey(fd)) {
+    Descriptor descriptor = lockOpen(fd, false);
+    if (descriptor == null) {
       Log.error("Incorrect fd");
       return "";
     }
-    String data = getFileData(fd);
-    if (size > data.length() || offset > data.length() || size <= 0 || offset < 0) {
-      Log.error("Incorrect offset or size");
-      return "";
+    try {
+      if (offset < 0 || size <= 0 || (long) offset + size > descriptor.getSize()) {
+        Log.error("Incorrect offset or size");
+        return "";
+      }
+      ByteBuffer block = scratch.get().block;
+      char[] bits = new char[size];
+      for (int i = 0; i < size; ) {
+        int chunk = Math.min(block.capacity() - (offset + i) % block.capacity(), size - i);
+        read(fd, offset + i, block.clear().limit(chunk));
+        for (int j = 0; j < chunk; j++, i++) {
+          bits[i] = block.get(j) == 0 ? '0' : '1';
+        }
+      }
+      return new String(bits);
+    } finally {
+      unlock(descriptor, false);
     }
-    return data.substring(offset, offset + size);
   }
 
-  public boolean truncate(String path, int size) {
-
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
-
-    if (parent == null || name == null) {
-      return false;
+  /**
+   * Copies {@code src} into the file starting at {@code offset}, one block at a time. Holes in
+   * the range get their blocks now. Returns the number of bytes written, or {@code -1} if the fd
+   * is not open, the range does not fit the file or there are not enough free blocks.
+   */
+  public int write(int fd, long offset, ByteBuffer src) {
+    Descriptor descriptor = lockOpen(fd, true);
+    if (descriptor == null) {
+      Log.error("Incorrect fd [" + fd + "]");
+      return -1;
     }
-
-    Descriptor descriptor = parent.getByName(name);
-    if (descriptor == null || size < 0 || descriptor.isDirectory() || descriptor.isSymlink()) {
-      return false;
+    try {
+      int length = src.remaining();
+      if (offset < 0 || offset + length > descriptor.getSize()) {
+        Log.error("Incorrect offset or size");
+        return -1;
+      }
+      Extents extents = descriptor.getExtents();
+      if (countHoles(extents, offset, length) > allocator.getFreeCount()) {
+        Log.error("Not enough free blocks");
+        return -1;
+      }
+      int limit = src.limit();
+      int blockSize = geometry.getBlockSize();
+      int from = Integer.MAX_VALUE;
+      while (src.hasRemaining()) {
+        int index = (int) (offset / blockSize);
+        int inner = (int) (offset % blockSize);
+        int chunk = Math.min(blockSize - inner, src.remaining());
+        int block = extents.get(index);
+        if (block == -1) {
+          block = allocateBlock();
+          if (block == -1) {
+            Log.error("Not enough free blocks");
+            break;
+          }
+          from = Math.min(from, extents.add(index, block, 1));
+        }
+        src.limit(src.position() + chunk);
+        device.write(block, inner, src);
+        src.limit(limit);
+        offset += chunk;
+      }
+      if (from != Integer.MAX_VALUE && descriptor.getLinksAmount() > 0) {
+        store.blocksChanged(extents, from);
+        store.inodeChanged(descriptor);
+      }
+      return length - src.remaining();
+    } finally {
+      unlock(descriptor, true);
     }
+  }
 
-    int extension = size - descriptor.getSize();
-    if (extension > 0) {
-      List<Integer> blocksIds = getFreeBlocksIdsForExtension(extension);
-      if (blocksIds.isEmpty()) {
-        return false;
+  /**
+   * Fills {@code dst} from the file starting at {@code offset}, stopping at the end of the file.
+   * Holes read as zeros. Returns the number of bytes read, or {@code -1} if the fd is not open
+   * or {@code offset} lies outside the file.
+   */
+  public int read(int fd, long offset, ByteBuffer dst) {
+    Descriptor descriptor = lockOpen(fd, false);
+    if (descriptor == null) {
+      Log.error("Incorrect fd [" + fd + "]");
+      return -1;
+    }
+    try {
+      if (offset < 0 || offset > descriptor.getSize()) {
+        Log.error("Incorrect offset or size");
+        return -1;
       }
-      descriptor.getBlockLinks().addAll(blocksIds);
-    } else if (extension < 0) {
-      while (extension <= -Block.MAX_BLOCK_SIZE) {
-        Integer id = descriptor.getBlockLinks().remove(descriptor.getBlockLinks().size() - 1);
-        blocks.get(id).setUsed(false);
-        extension += Block.MAX_BLOCK_SIZE;
+      int length = (int) Math.min(dst.remaining(), descriptor.getSize() - offset);
+      int limit = dst.limit();
+      int end = dst.position() + length;
+      int blockSize = geometry.getBlockSize();
+      Extents extents = descriptor.getExtents();
+      while (dst.position() < end) {
+        int inner = (int) (offset % blockSize);
+        int chunk = Math.min(blockSize - inner, end - dst.position());
+        int block = extents.get((int) (offset / blockSize));
+        if (block == -1) {
+          for (int i = 0; i < chunk; i++) {
+            dst.put((byte) 0);
+          }
+        } else {
+          dst.limit(dst.position() + chunk);
+          device.read(block, inner, dst);
+        }
+        offset += chunk;
       }
+      dst.limit(limit);
+      return length;
+    } finally {
+      unlock(descriptor, false);
     }
-    descriptor.setSize(size);
-    return true;
   }
 
-  public boolean openFile(String path) {
+  public boolean truncate(String path, int size) {
+    namespace.readLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
 
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
+      Descriptor descriptor = parent.getByName(name);
+      if (descriptor == null || size < 0 || size > geometry.getMaxFileSize()
+          || descriptor.isDirectory() || descriptor.isSymlink()) {
+        return false;
+      }
 
-    if (parent == null || name == null) {
-      return false;
+      descriptor.getLock().writeLock().lock();
+      try {
+        Extents extents = descriptor.getExtents();
+        int from = extents.truncate(geometry.formatSize(size) / geometry.getBlockSize(),
+            this::releaseBlock);
+        descriptor.setSize(geometry.formatSize(size));
+        store.blocksChanged(extents, from);
+        store.inodeChanged(descriptor);
+      } finally {
+        descriptor.getLock().writeLock().unlock();
+      }
+      return true;
+    } finally {
+      namespace.readLock().unlock();
     }
+  }
 
-    Descriptor descriptor = parent.getByName(name);
-    if (descriptor == null || descriptor.isDirectory() || descriptor.isSymlink()) {
-      return false;
+  /**
+   * Opens the file at {@code path} and returns its fd, or {@code -1} if there is no such file.
+   */
+  public int openFile(String path) {
+    namespace.readLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return -1;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
+
+      Descriptor descriptor = parent.getByName(name);
+      if (descriptor == null || descriptor.isDirectory() || descriptor.isSymlink()) {
+        return -1;
+      }
+      return openFiles.open(descriptor);
+    } finally {
+      namespace.readLock().unlock();
     }
-    int index = getFreeIndex(openFiles);
-    openFiles.put(index, descriptor);
-    Log.info("File [" + name + "] open with fd " + index);
-    return true;
   }
 
   public boolean link(String path, String name2) {
+    namespace.writeLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
 
-    String name = getFileName(path);
-    Descriptor parent = getParent(path);
-
-    if (parent == null || name == null) {
-      return false;
-    }
-
-    Descriptor descriptor = parent.getByName(name);
-    if (descriptor == null || !checkName(name2, parent) || descriptor.isDirectory()
-        || descriptor.isSymlink()) {
-      return false;
+      Descriptor descriptor = parent.getByName(name);
+      if (descriptor == null || !checkName(name2, parent) || descriptor.isDirectory()
+          || descriptor.isSymlink() || descriptor.getLinksAmount() >= geometry.getMaxLinks()) {
+        return false;
+      }
+      parent.addDescriptor(name2, descriptor);
+      descriptor.incrementLinks();
+      dentries.added();
+      store.inodeChanged(descriptor);
+      store.entryAdded(parent.getId(), name2, descriptor.getId());
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
-    parent.addDescriptor(name2, descriptor);
-    return true;
   }
 
   public boolean unlink(String path) {
+    namespace.writeLock().lock();
+    try {
+      Lookup lookup = lookup(path);
+      if (lookup == null) {
+        return false;
+      }
+      Descriptor parent = lookup.parent;
+      String name = lookup.name;
 
-    Descriptor parent = getParent(path);
-
-    String name = getFileName(path);
-
+      Descriptor descriptor = parent.getByName(name);
+      if (descriptor == null || descriptor.isDirectory() || descriptor.isSymlink()) {
+        return false;
+      }
+      parent.removeDescriptor(name);
+      dentries.removed();
+      store.entryRemoved(parent.getId(), name);
 
-    if (parent == null || name == null) {
-      return false;
+      if (descriptor.decrementLinks() > 0) {
+        store.inodeChanged(descriptor);
+        return true;
+      }
+      store.inodeReleased(descriptor.getId());
+      descriptors.release(descriptor);
+      if (descriptor.getOpenCount() == 0) {
+        releaseBlocks(descriptor);
+      }
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
     }
+  }
 
-    Descriptor descriptor = parent.removeDescriptor(name);
-    if (descriptor == null || descriptor.isDirectory() || descriptor.isSymlink()) {
+  public boolean closeFile(int fd) {
+    Descriptor descriptor = lockOpen(fd, true);
+    if (descriptor == null) {
       return false;
     }
-
-    if (!parent.contains(descriptor)) {
-      removeDescriptor(descriptor);
+    try {
+      openFiles.close(fd);
+      if (descriptor.getLinksAmount() == 0 && descriptor.getOpenCount() == 0) {
+        releaseBlocks(descriptor);
+      }
+      return true;
+    } finally {
+      unlock(descriptor, true);
     }
+  }
 
-    if (!openFiles.containsValue(descriptor)) {
-      getFileBlocks(descriptor).forEach(block -> block.setUsed(false));
+  /**
+   * Writes the buffered blocks of the open file {@code fd} through to the device. Returns
+   * {@code false} if the fd is not open.
+   */
+  public boolean sync(int fd) {
+    Descriptor descriptor = lockOpen(fd, false);
+    if (descriptor == null) {
+      return false;
+    }
+    try {
+      device.sync(descriptor.getExtents().toArray());
+      return true;
+    } finally {
+      unlock(descriptor, false);
     }
-    return true;
   }
 
-  public boolean closeFile(int fd) {
-    Descriptor descriptor = openFiles.remove(fd);
-
-    if (descriptor != null && !openFiles.containsValue(descriptor) &&
-        !descriptors.containsValue(descriptor)) {
-      getFileBlocks(descriptor).forEach(block -> block.setUsed(false));
+  /**
+   * Describes inode {@code id}, or returns {@code null} if it is not in use. The inode is read
+   * under its lock, so a concurrent write or truncate never shows half done.
+   */
+  public String stat(int id) {
+    namespace.readLock().lock();
+    try {
+      Descriptor descriptor = descriptors.get(id);
+      if (descriptor == null) {
+        return null;
+      }
+      descriptor.getLock().readLock().lock();
+      try {
+        return descriptor.toString();
+      } finally {
+        descriptor.getLock().readLock().unlock();
+      }
+    } finally {
+      namespace.readLock().unlock();
     }
-
-    return descriptor != null;
   }
 
   public String getLinksInfo() {
+    namespace.readLock().lock();
+    try {
+      StringBuilder sb = new StringBuilder("\n");
+
+      Set<Entry<String, Descriptor>> entries = directory.getNameLinks().entrySet();
+      for (Entry<String, Descriptor> entry : entries) {
+        int id = entry.getValue().getId();
+        sb.append(entry.getKey()).append(" : ").append(id).append("  ")
+            .append(entry.getValue().isDirectory() ? "Directory"
+                : (entry.getValue().isSymlink() ? "Symlink" : "File")).append("\n");
+      }
 
-    StringBuilder sb = new StringBuilder("\n");
-
-    Set<Entry<String, Descriptor>> entries = directory.getNameLinks().entrySet();
-    for (Entry<String, Descriptor> entry : entries) {
-      int id = getDescriptorIndex(entry.getValue());
-      sb.append(entry.getKey()).append(" : ").append(id).append("  ")
-          .append(entry.getValue().isDirectory() ? "Directory"
-              : (entry.getValue().isSymlink() ? "Symlink" : "File")).append("\n");
+      return sb.toString();
+    } finally {
+      namespace.readLock().unlock();
     }
-
-    return sb.toString();
-  }
-
-  private String getFileName(String path){
-    if(path == null){
-      return null;
-    }
-    int index = path.lastIndexOf('/');
-    if(index != -1 && path.split("/").length != 1){
-      return path.substring(index+1);
-    }
-    return path;
   }
 
   public boolean format() {
-    descriptors.clear();
-    directory = new Descriptor(true, false, null, 0, null, null);
-    return true;
+    namespace.writeLock().lock();
+    try {
+      descriptors.clear();
+      openFiles.clear();
+      allocator.clear();
+      directory = new Descriptor(true, false, null, 0, null, null);
+      dentries.clear();
+      store.formatted();
+      return true;
+    } finally {
+      namespace.writeLock().unlock();
+    }
   }
 
-  private Descriptor getParent(String path) {
-    String[] pathArray = path.split("/");
-    Descriptor parent = directory;
-    if (pathArray.length > 1) {
-      parent = getByPath(path.substring(0, path.lastIndexOf('/')), false);
+  public void closeAll() {
+    for (int fd = 0; fd < openFiles.length(); fd++) {
+      closeFile(fd);
     }
-    return parent;
   }
 
   private boolean createDirectory(String name, Descriptor parent) {
@@ -373,83 +749,141 @@ public class FileSystem implements Serializable {
       return false;
     }
     Descriptor descriptor = new Descriptor(true, false, null, 0, parent, null);
-    int index = getFreeIndex(descriptors);
-    descriptors.put(index, descriptor);
+    descriptors.allocate(descriptor);
     parent.addDescriptor(name, descriptor);
+    descriptor.incrementLinks();
+    dentries.added();
+    store.inodeChanged(descriptor);
+    store.entryAdded(parent.getId(), name, descriptor.getId());
     return true;
   }
 
-  private void init() {
-    for (int i = 0; i < MAX_BLOCKS; i++) {
-      blocks.add(i, new Block());
-    }
+  private void releaseBlocks(Descriptor descriptor) {
+    descriptor.getExtents().truncate(0, this::releaseBlock);
   }
 
-  private void removeDescriptor(Descriptor descriptor) {
-    descriptors.entrySet().removeIf(entry -> descriptor.equals(entry.getValue()));
+  private int allocateBlock() {
+    synchronized (allocator) {
+      int id = allocator.allocate();
+      if (id != -1) {
+        device.zero(id);
+        store.blockUsed(id, true);
+      }
+      return id;
+    }
   }
 
-  private List<Block> getFileBlocks(Descriptor descriptor) {
-    return descriptor.getBlockLinks().stream().map(blocks::get).collect(Collectors.toList());
+  private void releaseBlock(int id) {
+    synchronized (allocator) {
+      if (allocator.isUsed(id)) {
+        allocator.free(id);
+        store.blockUsed(id, false);
+      }
+    }
   }
 
-  private List<Integer> getFreeBlocksIdsForExtension(int extension) {
-    int count = (int) Math.ceil((double) extension / Block.MAX_BLOCK_SIZE);
-    if (count > blocks.size()) {
-      return Collections.emptyList();
-    }
-    List<Integer> blocksIds = new ArrayList<>();
-    for (int i = 0; i < count; i++) {
-      Integer id = getFreeBlockId();
-      if (id == -1) {
-        blocksIds.forEach(bid -> blocks.get(bid).setUsed(false));
-        return Collections.emptyList();
+  /**
+   * Maps {@code count} more blocks at the end of {@code extents}, as one run when the bitmap has
+   * a long enough gap. Returns the first run that changed, or {@code -1} if there is not enough
+   * free space.
+   */
+  private int allocateBlocks(Extents extents, int count) {
+    if (count == 0) {
+      return extents.size();
+    }
+    int start;
+    synchronized (allocator) {
+      if (count > allocator.getFreeCount()) {
+        return -1;
       }
-      blocksIds.add(id);
-      blocks.get(id).setUsed(true);
+      start = allocator.allocateRun(count);
+      for (int i = start; i < start + count && start != -1; i++) {
+        device.zero(i);
+        store.blockUsed(i, true);
+      }
+    }
+    if (start != -1) {
+      return extents.append(start, count);
+    }
+    int from = extents.append(allocateBlock(), 1);
+    for (int i = 1; i < count; i++) {
+      extents.append(allocateBlock(), 1);
     }
-    return blocksIds;
+    return from;
   }
 
-  private int getFreeIndex(Map<Integer, Descriptor> map) {
-    for (int i = 0; i < map.size(); i++) {
-      if (map.get(i) == null) {
-        return i;
+  private int countHoles(Extents extents, long offset, long length) {
+    int blockSize = geometry.getBlockSize();
+    int holes = 0;
+    for (long index = offset / blockSize; index * blockSize < offset + length; index++) {
+      if (extents.get((int) index) == -1) {
+        holes++;
       }
     }
-    return map.size();
+    return holes;
   }
 
-  private int getDescriptorIndex(Descriptor descriptor) {
-    for (Entry<Integer, Descriptor> entry : descriptors.entrySet()) {
-      if (entry.getValue().equals(descriptor)) {
-        return entry.getKey();
+  /**
+   * Takes the namespace read lock and the lock of the inode behind {@code fd}, or returns
+   * {@code null} if the fd is not open. Holding the namespace lock keeps unlink from running
+   * underneath; re-checking the fd after locking the inode catches a concurrent close.
+   */
+  private Descriptor lockOpen(int fd, boolean exclusive) {
+    namespace.readLock().lock();
+    Descriptor descriptor = openFiles.get(fd);
+    if (descriptor != null) {
+      lock(descriptor, exclusive).lock();
+      if (openFiles.get(fd) == descriptor) {
+        return descriptor;
       }
+      lock(descriptor, exclusive).unlock();
     }
-    return -1;
+    namespace.readLock().unlock();
+    return null;
+  }
+
+  private void unlock(Descriptor descriptor, boolean exclusive) {
+    lock(descriptor, exclusive).unlock();
+    namespace.readLock().unlock();
   }
 
-  private Integer getFreeBlockId() {
-    return blocks.indexOf(blocks.stream()
-        .filter(block -> !block.isUsed())
-        .findFirst().orElse(null));
+  private static Lock lock(Descriptor descriptor, boolean exclusive) {
+    return exclusive ? descriptor.getLock().writeLock() : descriptor.getLock().readLock();
   }
 
   private boolean checkName(String name, Descriptor parent) {
-    return name != null && name.length() <= MAX_FILE_NAME_LENGTH && !parent.contains(name);
+    return name != null && name.length() <= geometry.getNameLength() && !parent.contains(name);
   }
 
   private boolean isDescriptorsMax() {
-    return MAX_DESCRIPTORS == descriptors.size();
+    return descriptors.isFull();
   }
 
-  private String getFileData(int fd) {
-    Descriptor descriptor = openFiles.get(fd);
-    List<String> dataSet = descriptor.getBlockLinks().stream()
-        .map(link -> blocks.get(link).getData()).collect(Collectors.toList());
-    StringBuilder sb = new StringBuilder();
-    dataSet.forEach(sb::append);
-    return sb.toString();
+  /**
+   * Per-thread buffers reused by path walks and the legacy read/write.
+   */
+  private static final class Scratch {
+
+    private final PathName probe = new PathName();
+    private final CharSequence[] pending = new CharSequence[MAX_SYMLINK_HOPS];
+    private final int[] positions = new int[MAX_SYMLINK_HOPS];
+    private final int[] limits = new int[MAX_SYMLINK_HOPS];
+    private final Descriptor[] links = new Descriptor[MAX_SYMLINK_HOPS];
+    private final ByteBuffer block;
+
+    private Scratch(int blockSize) {
+      block = ByteBuffer.allocate(blockSize);
+    }
   }
 
+  private static final class Lookup {
+
+    private final Descriptor parent;
+    private final String name;
+
+    private Lookup(Descriptor parent, String name) {
+      this.parent = parent;
+      this.name = name;
+    }
+  }
 }
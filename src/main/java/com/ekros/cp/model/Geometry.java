@@ -0,0 +1,57 @@
+package com.ekros.cp.model;
+
+import lombok.Getter;
+
+/**
+ * Limits of one file system, chosen at mkfs time and persisted in the image superblock.
+ */
+@Getter
+public class Geometry {
+
+  public static final Geometry DEFAULT = new Geometry(FileSystem.MAX_BLOCK_SIZE,
+      FileSystem.MAX_BLOCKS, FileSystem.MAX_DESCRIPTORS, FileSystem.MAX_FILE_NAME_LENGTH,
+      FileSystem.MAX_LINKS_AMOUNT);
+
+  private final int blockSize;
+  private final int blockCount;
+  private final int inodeCount;
+  private final int nameLength;
+  private final int maxLinks;
+
+  public Geometry(int blockSize, int blockCount, int inodeCount, int nameLength, int maxLinks) {
+    if (blockSize <= 0 || blockCount <= 0 || inodeCount <= 0 || maxLinks <= 0) {
+      throw new IllegalArgumentException("Block size, block count, inode count and links amount"
+          + " must be positive");
+    }
+    if (nameLength <= 0 || nameLength > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Name length must be in [1, " + Short.MAX_VALUE + "]");
+    }
+    this.blockSize = blockSize;
+    this.blockCount = blockCount;
+    this.inodeCount = inodeCount;
+    this.nameLength = nameLength;
+    this.maxLinks = maxLinks;
+  }
+
+  /**
+   * Files may be sparse, but never larger than the data region could hold.
+   */
+  public long getMaxFileSize() {
+    return (long) blockSize * blockCount;
+  }
+
+  public int formatSize(int size) {
+    return Descriptor.formatSize(size, blockSize);
+  }
+
+  @Override
+  public String toString() {
+    return "Geometry{" +
+        "blockSize=" + blockSize +
+        ", blockCount=" + blockCount +
+        ", inodeCount=" + inodeCount +
+        ", nameLength=" + nameLength +
+        ", maxLinks=" + maxLinks +
+        '}';
+  }
+}
@@ -0,0 +1,254 @@
+package com.ekros.cp.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntFunction;
+
+/**
+ * Dense table of descriptors indexed by inode number. Released slots form an intrusive free-list
+ * threaded through {@code nextFree}, so allocation, lookup and release are all O(1). The arrays
+ * grow with the highest inode number in use rather than with the configured capacity.
+ *
+ * <p>A table with a loader is lazy: an inode is read through the loader the first time it is
+ * looked up, and free inodes are found by reading forward from a cursor, so nothing is read at
+ * mount. Inodes whose state is known are marked in {@code resolved}; every known free one is on
+ * the free-list. Lazy tables are synchronized, since lookups under a shared namespace lock fill
+ * them.
+ */
+public class InodeTable {
+
+  private static final int INITIAL_LENGTH = 16;
+
+  private final int capacity;
+  private Descriptor[] slots;
+  private int[] nextFree;
+  private int freeHead = -1;
+  private int highWater;
+  private int size;
+  private boolean freeListStale;
+  private volatile IntFunction<Descriptor> loader;
+  private BitSet resolved;
+
+  public InodeTable(int capacity) {
+    this(capacity, null);
+  }
+
+  /**
+   * Creates a table that reads inode {@code id} through {@code loader.apply(id)} on first use.
+   * The loader returns {@code null} for a free inode and may {@link #restore} the inodes it
+   * needs on the way, such as parent directories.
+   */
+  public InodeTable(int capacity, IntFunction<Descriptor> loader) {
+    this.capacity = capacity;
+    this.slots = new Descriptor[Math.min(capacity, INITIAL_LENGTH)];
+    this.nextFree = new int[slots.length];
+    if (loader != null) {
+      this.loader = loader;
+      this.resolved = new BitSet();
+    }
+  }
+
+  /**
+   * Stores {@code descriptor} under {@code id} and returns it, or returns {@code -1} if the table
+   * is full.
+   */
+  public int allocate(Descriptor descriptor) {
+    if (loader != null) {
+      synchronized (this) {
+        return findFree() ? take(descriptor) : -1;
+      }
+    }
+    if (freeListStale) {
+      rebuildFreeList();
+    }
+    int id;
+    if (freeHead != -1) {
+      id = freeHead;
+      freeHead = nextFree[id];
+    } else if (highWater < capacity) {
+      id = highWater++;
+      ensureLength(highWater);
+    } else {
+      return -1;
+    }
+    slots[id] = descriptor;
+    descriptor.setId(id);
+    size++;
+    return id;
+  }
+
+  /**
+   * Places a descriptor loaded from an image under its persisted inode number.
+   */
+  public void restore(int id, Descriptor descriptor) {
+    if (loader != null) {
+      synchronized (this) {
+        ensureLength(id + 1);
+        resolved.set(id);
+        if (slots[id] == null) {
+          size++;
+        }
+        slots[id] = descriptor;
+        descriptor.setId(id);
+      }
+      return;
+    }
+    highWater = Math.max(highWater, id + 1);
+    ensureLength(highWater);
+    if (slots[id] == null) {
+      size++;
+    }
+    slots[id] = descriptor;
+    descriptor.setId(id);
+    freeListStale = true;
+  }
+
+  public void release(Descriptor descriptor) {
+    if (loader != null) {
+      synchronized (this) {
+        free(descriptor);
+      }
+    } else {
+      free(descriptor);
+    }
+  }
+
+  public Descriptor get(int id) {
+    if (loader != null) {
+      synchronized (this) {
+        return id >= 0 && id < capacity ? resolve(id) : null;
+      }
+    }
+    return id >= 0 && id < highWater ? slots[id] : null;
+  }
+
+  public boolean contains(int id) {
+    return get(id) != null;
+  }
+
+  /**
+   * Number of inodes in use. A lazy table has to read every inode first.
+   */
+  public int size() {
+    if (loader != null) {
+      resolveAll();
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public boolean isFull() {
+    if (loader != null) {
+      synchronized (this) {
+        return !findFree();
+      }
+    }
+    return size == capacity;
+  }
+
+  /**
+   * Whether inode {@code id} is known without reading it, always true for an eager table.
+   */
+  public boolean isResolved(int id) {
+    if (loader != null) {
+      synchronized (this) {
+        return resolved.get(id);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads every inode a lazy table has not read yet; the table is eager afterwards.
+   */
+  public synchronized void resolveAll() {
+    if (loader == null) {
+      return;
+    }
+    for (int id = resolved.nextClearBit(0); id < capacity; id = resolved.nextClearBit(id + 1)) {
+      resolve(id);
+    }
+    highWater = capacity;
+    freeListStale = true;
+    resolved = null;
+    loader = null;
+  }
+
+  public synchronized void clear() {
+    Arrays.fill(slots, null);
+    freeHead = -1;
+    highWater = 0;
+    size = 0;
+    freeListStale = false;
+    resolved = null;
+    loader = null;
+  }
+
+  private void free(Descriptor descriptor) {
+    int id = descriptor.getId();
+    if (id < 0 || id >= slots.length || slots[id] != descriptor) {
+      return;
+    }
+    slots[id] = null;
+    nextFree[id] = freeHead;
+    freeHead = id;
+    size--;
+  }
+
+  private Descriptor resolve(int id) {
+    ensureLength(id + 1);
+    if (!resolved.get(id)) {
+      Descriptor descriptor = loader.apply(id);
+      if (descriptor != null) {
+        restore(id, descriptor);
+      } else {
+        resolved.set(id);
+        nextFree[id] = freeHead;
+        freeHead = id;
+      }
+    }
+    return slots[id];
+  }
+
+  /**
+   * Reads inodes forward from {@code highWater} until one is free or the table is exhausted.
+   */
+  private boolean findFree() {
+    while (freeHead == -1 && highWater < capacity) {
+      resolve(highWater++);
+    }
+    return freeHead != -1;
+  }
+
+  private int take(Descriptor descriptor) {
+    int id = freeHead;
+    freeHead = nextFree[id];
+    slots[id] = descriptor;
+    descriptor.setId(id);
+    resolved.set(id);
+    size++;
+    return id;
+  }
+
+  private void ensureLength(int length) {
+    if (length > slots.length) {
+      int newLength = (int) Math.min(capacity, Math.max(length, 2L * slots.length));
+      slots = Arrays.copyOf(slots, newLength);
+      nextFree = Arrays.copyOf(nextFree, newLength);
+    }
+  }
+
+  private void rebuildFreeList() {
+    freeHead = -1;
+    for (int id = highWater - 1; id >= 0; id--) {
+      if (slots[id] == null) {
+        nextFree[id] = freeHead;
+        freeHead = id;
+      }
+    }
+    freeListStale = false;
+  }
+}
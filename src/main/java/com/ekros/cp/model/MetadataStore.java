@@ -0,0 +1,33 @@
+package com.ekros.cp.model;
+
+/**
+ * Receives every metadata change made by {@link FileSystem} so that it can be persisted record by
+ * record. Descriptors are identified by their inode number; the root directory has id
+ * {@code -1}. The default methods do nothing, which is what an in-memory file system uses.
+ */
+public interface MetadataStore {
+
+  default void inodeChanged(Descriptor descriptor) {
+  }
+
+  default void inodeReleased(int id) {
+  }
+
+  default void entryAdded(int parentId, String name, int id) {
+  }
+
+  default void entryRemoved(int parentId, String name) {
+  }
+
+  /**
+   * Block mapping of a file changed starting at run {@code from}; runs before it are unchanged.
+   */
+  default void blocksChanged(Extents extents, int from) {
+  }
+
+  default void blockUsed(int block, boolean used) {
+  }
+
+  default void formatted() {
+  }
+}
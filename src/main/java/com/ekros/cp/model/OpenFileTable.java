@@ -0,0 +1,81 @@
+package com.ekros.cp.model;
+
+import java.util.Arrays;
+
+/**
+ * File descriptor table. Closed fds are threaded into an intrusive free-list and reused first;
+ * each descriptor counts how many fds refer to it, so deciding whether an inode is still open
+ * never scans the table.
+ */
+public class OpenFileTable {
+
+  private static final int INITIAL_LENGTH = 16;
+
+  private Descriptor[] slots = new Descriptor[INITIAL_LENGTH];
+  private int[] nextFree = new int[INITIAL_LENGTH];
+  private int freeHead = -1;
+  private int highWater;
+  private int size;
+
+  public synchronized int open(Descriptor descriptor) {
+    int fd;
+    if (freeHead != -1) {
+      fd = freeHead;
+      freeHead = nextFree[fd];
+    } else {
+      fd = highWater++;
+      if (fd == slots.length) {
+        slots = Arrays.copyOf(slots, fd * 2);
+        nextFree = Arrays.copyOf(nextFree, fd * 2);
+      }
+    }
+    slots[fd] = descriptor;
+    descriptor.incrementOpenCount();
+    size++;
+    return fd;
+  }
+
+  /**
+   * Frees {@code fd} and returns the descriptor it referred to, or {@code null} if it was not
+   * open.
+   */
+  public synchronized Descriptor close(int fd) {
+    Descriptor descriptor = get(fd);
+    if (descriptor == null) {
+      return null;
+    }
+    slots[fd] = null;
+    nextFree[fd] = freeHead;
+    freeHead = fd;
+    size--;
+    descriptor.decrementOpenCount();
+    return descriptor;
+  }
+
+  public synchronized Descriptor get(int fd) {
+    return fd >= 0 && fd < highWater ? slots[fd] : null;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Upper bound of the fds handed out so far.
+   */
+  public synchronized int length() {
+    return highWater;
+  }
+
+  public synchronized void clear() {
+    for (int fd = 0; fd < highWater; fd++) {
+      if (slots[fd] != null) {
+        slots[fd].decrementOpenCount();
+        slots[fd] = null;
+      }
+    }
+    freeHead = -1;
+    highWater = 0;
+    size = 0;
+  }
+}
@@ -0,0 +1,70 @@
+package com.ekros.cp.model;
+
+/**
+ * Mutable view of one component of a path. Hashes and compares like the equivalent
+ * {@link String}, so it can probe {@code String}-keyed maps without copying the characters.
+ */
+final class PathName implements CharSequence {
+
+  private CharSequence source = "";
+  private int start;
+  private int end;
+
+  PathName set(CharSequence source, int start, int end) {
+    this.source = source;
+    this.start = start;
+    this.end = end;
+    return this;
+  }
+
+  boolean is(String name) {
+    return contentEquals(name);
+  }
+
+  @Override
+  public int length() {
+    return end - start;
+  }
+
+  @Override
+  public char charAt(int index) {
+    return source.charAt(start + index);
+  }
+
+  @Override
+  public CharSequence subSequence(int from, int to) {
+    return source.subSequence(start + from, start + to);
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.charAt(i);
+    }
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof CharSequence && contentEquals((CharSequence) other);
+  }
+
+  @Override
+  public String toString() {
+    return source.subSequence(start, end).toString();
+  }
+
+  private boolean contentEquals(CharSequence other) {
+    int length = length();
+    if (other.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (source.charAt(start + i) != other.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,37 @@
+package com.ekros.cp.storage;
+
+import java.nio.ByteBuffer;
+
+public interface BlockDevice {
+
+  int getBlockSize();
+
+  int getBlockCount();
+
+  /**
+   * Copies {@code dst.remaining()} bytes starting at {@code offset} inside {@code block} into
+   * {@code dst}. The range must not cross the end of the block.
+   */
+  void read(int block, int offset, ByteBuffer dst);
+
+  /**
+   * Copies {@code src.remaining()} bytes into {@code block} starting at {@code offset}. The range
+   * must not cross the end of the block.
+   */
+  void write(int block, int offset, ByteBuffer src);
+
+  void zero(int block);
+
+  /**
+   * Writes every buffered change through to the backing store. Unbuffered devices have nothing
+   * to do.
+   */
+  default void sync() {
+  }
+
+  /**
+   * Writes buffered changes of the given blocks through to the backing store.
+   */
+  default void sync(int[] blocks) {
+  }
+}
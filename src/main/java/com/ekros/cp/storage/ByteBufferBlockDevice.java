@@ -0,0 +1,58 @@
+package com.ekros.cp.storage;
+
+import java.nio.ByteBuffer;
+import lombok.Getter;
+
+/**
+ * Block device keeping every block in one contiguous {@link ByteBuffer}; block {@code i} starts
+ * at byte {@code i * blockSize}.
+ */
+@Getter
+public abstract class ByteBufferBlockDevice implements BlockDevice {
+
+  private final int blockSize;
+  private final int blockCount;
+  private final ByteBuffer buffer;
+
+  protected ByteBufferBlockDevice(int blockSize, int blockCount) {
+    this.blockSize = blockSize;
+    this.blockCount = blockCount;
+    this.buffer = allocate(Math.multiplyExact(blockSize, blockCount));
+  }
+
+  protected ByteBufferBlockDevice(int blockSize, int blockCount, ByteBuffer buffer) {
+    this.blockSize = blockSize;
+    this.blockCount = blockCount;
+    this.buffer = buffer;
+  }
+
+  protected abstract ByteBuffer allocate(int capacity);
+
+  @Override
+  public void read(int block, int offset, ByteBuffer dst) {
+    int position = position(block, offset, dst.remaining());
+    dst.put(buffer.duplicate().limit(position + dst.remaining()).position(position));
+  }
+
+  @Override
+  public void write(int block, int offset, ByteBuffer src) {
+    int position = position(block, offset, src.remaining());
+    buffer.duplicate().position(position).put(src);
+  }
+
+  @Override
+  public void zero(int block) {
+    int position = position(block, 0, blockSize);
+    for (int i = position; i < position + blockSize; i++) {
+      buffer.put(i, (byte) 0);
+    }
+  }
+
+  private int position(int block, int offset, int length) {
+    if (block < 0 || block >= blockCount || offset < 0 || offset + length > blockSize) {
+      throw new IndexOutOfBoundsException(
+          "Block " + block + " range [" + offset + ", " + (offset + length) + ")");
+    }
+    return block * blockSize + offset;
+  }
+}
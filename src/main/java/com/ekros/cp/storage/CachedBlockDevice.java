@@ -0,0 +1,368 @@
+package com.ekros.cp.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Write-back buffer cache over another {@link BlockDevice}. At most {@code capacity} blocks are
+ * held in memory, however large the backing device is. Frames are recycled with the CLOCK
+ * algorithm: a frame that was used since the hand last passed gets a second chance, otherwise it
+ * is evicted, and written back first if it is dirty. {@link #sync()} writes all dirty frames in
+ * block order, so the backing store sees one ascending sweep instead of the eviction order.
+ *
+ * <p>Whole-block writes and {@link #zero(int)} never read the old contents from the backing
+ * device.
+ *
+ * <p>Large caches are split into independently locked stripes by block hash, each with its own
+ * frames and clock, so I/O on a miss or an eviction only holds up blocks of the same stripe.
+ */
+public class CachedBlockDevice implements BlockDevice {
+
+  public static final int CAPACITY = Integer.getInteger("fs.bcache.size", 1024);
+
+  private static final int EMPTY = -1;
+  private static final int MAX_STRIPES = 16;
+  private static final int MIN_STRIPE_CAPACITY = 64;
+
+  private final BlockDevice backing;
+  private final int blockSize;
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  public CachedBlockDevice(BlockDevice backing) {
+    this(backing, CAPACITY);
+  }
+
+  public CachedBlockDevice(BlockDevice backing, int capacity) {
+    this.backing = backing;
+    this.blockSize = backing.getBlockSize();
+    int size = Math.max(1, Math.min(capacity, backing.getBlockCount()));
+    int count = Integer.highestOneBit(
+        Math.max(1, Math.min(MAX_STRIPES, size / MIN_STRIPE_CAPACITY)));
+    stripes = new Stripe[count];
+    stripeShift = Integer.SIZE - Integer.numberOfTrailingZeros(count);
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe(size / count + (i < size % count ? 1 : 0));
+    }
+  }
+
+  @Override
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  @Override
+  public int getBlockCount() {
+    return backing.getBlockCount();
+  }
+
+  public BlockDevice getBacking() {
+    return backing;
+  }
+
+  @Override
+  public void read(int block, int offset, ByteBuffer dst) {
+    check(block, offset, dst.remaining());
+    stripe(block).read(block, offset, dst);
+  }
+
+  @Override
+  public void write(int block, int offset, ByteBuffer src) {
+    check(block, offset, src.remaining());
+    stripe(block).write(block, offset, src);
+  }
+
+  @Override
+  public void zero(int block) {
+    check(block, 0, blockSize);
+    stripe(block).zero(block);
+  }
+
+  @Override
+  public void sync() {
+    int[][] dirty = new int[stripes.length][];
+    int count = 0;
+    for (int i = 0; i < stripes.length; i++) {
+      dirty[i] = stripes[i].dirtyBlocks();
+      count += dirty[i].length;
+    }
+    int[] pending = new int[count];
+    count = 0;
+    for (int[] blocks : dirty) {
+      System.arraycopy(blocks, 0, pending, count, blocks.length);
+      count += blocks.length;
+    }
+    Arrays.sort(pending);
+    for (int block : pending) {
+      stripe(block).flush(block);
+    }
+  }
+
+  @Override
+  public void sync(int[] blocks) {
+    int[] sorted = blocks.clone();
+    Arrays.sort(sorted);
+    for (int block : sorted) {
+      stripe(block).flush(block);
+    }
+  }
+
+  public int getCapacity() {
+    int capacity = 0;
+    for (Stripe stripe : stripes) {
+      capacity += stripe.frames.length;
+    }
+    return capacity;
+  }
+
+  public int getDirtyCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.dirtyCount;
+      }
+    }
+    return count;
+  }
+
+  public long getHits() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.hits;
+      }
+    }
+    return count;
+  }
+
+  public long getMisses() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.misses;
+      }
+    }
+    return count;
+  }
+
+  public long getEvictions() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.evictions;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Number of frames written back to the backing device, by eviction or sync.
+   */
+  public long getWrites() {
+    long count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.writes;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    int used = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        used += stripe.used;
+      }
+    }
+    return "CachedBlockDevice{capacity=" + getCapacity() + ", stripes=" + stripes.length
+        + ", used=" + used + ", dirty=" + getDirtyCount() + ", hits=" + getHits() + ", misses="
+        + getMisses() + ", evictions=" + getEvictions() + ", writes=" + getWrites() + "}";
+  }
+
+  /**
+   * Picks the stripe from the top bits of the hash, since the index of a stripe already uses the
+   * low ones.
+   */
+  private Stripe stripe(int block) {
+    return stripes.length == 1 ? stripes[0] : stripes[(block * 0x9E3779B9) >>> stripeShift];
+  }
+
+  private void check(int block, int offset, int length) {
+    if (block < 0 || block >= backing.getBlockCount() || offset < 0
+        || offset + length > blockSize) {
+      throw new IndexOutOfBoundsException(
+          "Block " + block + " range [" + offset + ", " + (offset + length) + ")");
+    }
+  }
+
+  private class Stripe {
+
+    private final ByteBuffer[] frames;
+    private final int[] blocks;
+    private final boolean[] referenced;
+    private final boolean[] dirty;
+    private final int[] keys;
+    private final int[] values;
+    private int used;
+    private int hand;
+    private int dirtyCount;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writes;
+
+    Stripe(int size) {
+      this.frames = new ByteBuffer[size];
+      this.blocks = new int[size];
+      this.referenced = new boolean[size];
+      this.dirty = new boolean[size];
+      this.keys = new int[Integer.highestOneBit(size * 2 - 1) * 2];
+      this.values = new int[keys.length];
+      Arrays.fill(keys, EMPTY);
+    }
+
+    synchronized void read(int block, int offset, ByteBuffer dst) {
+      ByteBuffer frame = frames[frame(block, true)];
+      dst.put(frame.duplicate().limit(offset + dst.remaining()).position(offset));
+    }
+
+    synchronized void write(int block, int offset, ByteBuffer src) {
+      int frame = frame(block, offset != 0 || src.remaining() != blockSize);
+      frames[frame].duplicate().position(offset).put(src);
+      markDirty(frame);
+    }
+
+    synchronized void zero(int block) {
+      int frame = frame(block, false);
+      ByteBuffer buffer = frames[frame];
+      for (int i = 0; i < blockSize; i++) {
+        buffer.put(i, (byte) 0);
+      }
+      markDirty(frame);
+    }
+
+    synchronized int[] dirtyBlocks() {
+      int[] pending = new int[dirtyCount];
+      int count = 0;
+      for (int frame = 0; frame < used; frame++) {
+        if (dirty[frame]) {
+          pending[count++] = blocks[frame];
+        }
+      }
+      return pending;
+    }
+
+    synchronized void flush(int block) {
+      int frame = lookup(block);
+      if (frame != EMPTY && dirty[frame]) {
+        writeBack(frame);
+      }
+    }
+
+    /**
+     * Returns the frame holding {@code block}, bringing it in on a miss. With {@code load} unset
+     * the caller overwrites the whole block, so the old contents are not read.
+     */
+    private int frame(int block, boolean load) {
+      int frame = lookup(block);
+      if (frame != EMPTY) {
+        hits++;
+        referenced[frame] = true;
+        return frame;
+      }
+      misses++;
+      frame = victim();
+      blocks[frame] = block;
+      referenced[frame] = true;
+      insert(block, frame);
+      if (load) {
+        backing.read(block, 0, frames[frame].clear());
+      }
+      return frame;
+    }
+
+    private int victim() {
+      if (used < frames.length) {
+        frames[used] = ByteBuffer.allocate(blockSize);
+        return used++;
+      }
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % frames.length;
+      }
+      int frame = hand;
+      hand = (hand + 1) % frames.length;
+      evictions++;
+      if (dirty[frame]) {
+        writeBack(frame);
+      }
+      delete(blocks[frame]);
+      return frame;
+    }
+
+    private void markDirty(int frame) {
+      if (!dirty[frame]) {
+        dirty[frame] = true;
+        dirtyCount++;
+      }
+    }
+
+    private void writeBack(int frame) {
+      backing.write(blocks[frame], 0, frames[frame].duplicate().clear());
+      dirty[frame] = false;
+      dirtyCount--;
+      writes++;
+    }
+
+    private int lookup(int block) {
+      for (int slot = slot(block); keys[slot] != EMPTY; slot = (slot + 1) & (keys.length - 1)) {
+        if (keys[slot] == block) {
+          return values[slot];
+        }
+      }
+      return EMPTY;
+    }
+
+    private void insert(int block, int frame) {
+      int slot = slot(block);
+      while (keys[slot] != EMPTY) {
+        slot = (slot + 1) & (keys.length - 1);
+      }
+      keys[slot] = block;
+      values[slot] = frame;
+    }
+
+    /**
+     * Removes {@code block} from the open-addressing index, shifting later entries of the same
+     * probe chain back so lookups never stop at the hole.
+     */
+    private void delete(int block) {
+      int mask = keys.length - 1;
+      int slot = slot(block);
+      while (keys[slot] != block) {
+        slot = (slot + 1) & mask;
+      }
+      int next = slot;
+      while (true) {
+        next = (next + 1) & mask;
+        if (keys[next] == EMPTY) {
+          break;
+        }
+        int home = slot(keys[next]);
+        if (((next - home) & mask) >= ((next - slot) & mask)) {
+          keys[slot] = keys[next];
+          values[slot] = values[next];
+          slot = next;
+        }
+      }
+      keys[slot] = EMPTY;
+    }
+
+    private int slot(int block) {
+      int hash = block * 0x9E3779B9;
+      return (hash ^ (hash >>> 16)) & (keys.length - 1);
+    }
+  }
+}
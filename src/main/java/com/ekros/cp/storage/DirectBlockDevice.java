@@ -0,0 +1,19 @@
+package com.ekros.cp.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap block device: the payload lives in a direct buffer, so only this object is visible to
+ * the garbage collector regardless of the device size.
+ */
+public class DirectBlockDevice extends ByteBufferBlockDevice {
+
+  public DirectBlockDevice(int blockSize, int blockCount) {
+    super(blockSize, blockCount);
+  }
+
+  @Override
+  protected ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocateDirect(capacity);
+  }
+}
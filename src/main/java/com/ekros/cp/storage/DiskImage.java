@@ -0,0 +1,449 @@
+package com.ekros.cp.storage;
+
+import com.ekros.cp.model.BlockAllocator;
+import com.ekros.cp.model.Descriptor;
+import com.ekros.cp.model.Extents;
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.model.InodeTable;
+import com.ekros.cp.model.MetadataStore;
+import com.ekros.cp.util.Log;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * File system image with the layout described by {@link Superblock}. Every metadata change
+ * reported by {@link FileSystem} is written as a single record at its own offset in the mapped
+ * metadata region, so persisting a mutation costs a few dirty pages instead of a rewrite of the
+ * whole image. Data blocks go through a {@link CachedBlockDevice} and are written back when
+ * evicted or forced.
+ */
+public class DiskImage implements MetadataStore, Closeable {
+
+  private static final byte FREE = 0;
+  private static final byte FILE = 1;
+  private static final byte DIRECTORY = 2;
+  private static final byte SYMLINK = 3;
+
+  private final FileChannel channel;
+  @Getter
+  private final Superblock superblock;
+  private final MappedByteBuffer meta;
+  private final FileBlockDevice data;
+  @Getter
+  private final CachedBlockDevice device;
+  private final ByteBuffer record;
+  private final Map<Integer, Map<String, Integer>> entries;
+  private final long[] bitmap;
+  private BlockAllocator entrySlots;
+  private Journal journal;
+  private InodeTable descriptors;
+  private boolean indexed;
+  private int[] heads;
+  private int[] next;
+
+  private DiskImage(FileChannel channel, Superblock superblock) throws IOException {
+    this.channel = channel;
+    this.superblock = superblock;
+    if (superblock.getDataOffset() > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Metadata region must fit in 2 GB: "
+          + superblock.getGeometry());
+    }
+    this.meta = channel.map(MapMode.READ_WRITE, 0, superblock.getDataOffset());
+    this.data = new FileBlockDevice(channel, superblock.getDataOffset(),
+        superblock.getBlockSize(), superblock.getBlockCount());
+    this.device = new CachedBlockDevice(data);
+    this.record = ByteBuffer.allocate(Math.max(Superblock.INODE_SIZE, superblock.getEntrySize()));
+    this.entries = new HashMap<>();
+    this.bitmap = new long[(superblock.getBlockCount() + 63) / 64];
+    this.entrySlots = new BlockAllocator(superblock.getEntryCount());
+  }
+
+  public static DiskImage open(FileChannel channel) throws IOException {
+    return open(channel, null);
+  }
+
+  /**
+   * Opens the image, replaying {@code journal} into it first when one is given. All metadata
+   * writes of the returned image then go through the journal.
+   */
+  public static DiskImage open(FileChannel channel, FileChannel journal) throws IOException {
+    if (channel.size() == 0) {
+      return create(channel, journal, Geometry.DEFAULT);
+    }
+    ByteBuffer header = ByteBuffer.allocate(Superblock.PAGE_SIZE);
+    channel.read(header, 0);
+    DiskImage image = new DiskImage(channel, Superblock.read(header));
+    if (journal != null) {
+      Journal.replay(journal, image);
+      image.journal = new Journal(journal, image);
+    }
+    return image;
+  }
+
+  public static DiskImage create(FileChannel channel, Geometry geometry) throws IOException {
+    return create(channel, null, geometry);
+  }
+
+  /**
+   * Writes a fresh image with the given geometry over {@code channel}, discarding whatever the
+   * channel and the journal held before.
+   */
+  public static DiskImage create(FileChannel channel, FileChannel journal, Geometry geometry)
+      throws IOException {
+    channel.truncate(0);
+    DiskImage image = new DiskImage(channel, new Superblock(geometry));
+    image.superblock.write(image.meta);
+    image.formatted();
+    if (journal != null) {
+      image.journal = new Journal(journal, image);
+    }
+    return image;
+  }
+
+  /**
+   * Mounts the image lazily: only the superblock and the block bitmap are read here. Inodes are
+   * read on first lookup, and a directory's entries the first time it is walked, so mounting
+   * costs the same whatever the size of the image.
+   */
+  public FileSystem mount() {
+    if (!entries.isEmpty()) {
+      // Entries written before mounting, as by a restore, have no descriptors to hang on yet.
+      indexed = false;
+    }
+    readBitmap();
+    Descriptor root = new Descriptor(true, false, null, 0, null, null);
+    descriptors = new InodeTable(superblock.getInodeCount(), id -> load(id, root));
+    root.deferEntries(links -> readEntries(-1, links));
+    return new FileSystem(superblock.getGeometry(), device,
+        new BlockAllocator(superblock.getBlockCount(), bitmap.clone()), root, descriptors, this);
+  }
+
+  /**
+   * Ends the current operation. With a journal its records become one transaction and are
+   * forced together with the next group commit; without one the dirty pages are forced now.
+   */
+  public void commit() throws IOException {
+    if (journal != null) {
+      journal.commit();
+    } else {
+      flush();
+    }
+  }
+
+  /**
+   * Ends the current operation like {@link #commit()}, but leaves making it durable to a later
+   * {@link #force()}. Without a journal there is no transaction to end.
+   */
+  public void seal() throws IOException {
+    if (journal != null) {
+      journal.commit();
+    }
+  }
+
+  public void flush() throws IOException {
+    seal();
+    force();
+  }
+
+  /**
+   * Makes every sealed transaction durable without ending the current one, so records of an
+   * operation still in flight stay out of it. Data blocks are written back and forced even when
+   * no transaction is pending, as after overwriting a file in place.
+   */
+  public void force() throws IOException {
+    forceData();
+    if (journal != null) {
+      journal.force();
+    } else {
+      forceMeta();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!channel.isOpen()) {
+      return;
+    }
+    if (journal != null) {
+      journal.close();
+    }
+    forceData();
+    forceMeta();
+    channel.close();
+  }
+
+  @Override
+  public synchronized void inodeChanged(Descriptor descriptor) {
+    Extents extents = descriptor.getExtents();
+    record.clear();
+    record.put(descriptor.isDirectory() ? DIRECTORY : descriptor.isSymlink() ? SYMLINK : FILE)
+        .put(new byte[3])
+        .putInt(descriptor.getSize())
+        .putInt(descriptor.getParentId())
+        .putInt(extents.isEmpty() ? -1 : extents.getStart(0))
+        .putInt(extents.size())
+        .putInt(descriptor.isSymlink()
+            ? descriptor.getSymlink().getBytes(StandardCharsets.UTF_8).length : 0)
+        .putInt(descriptor.getLinksAmount())
+        .putInt(0);
+    put(inodeOffset(descriptor.getId()), record.flip());
+  }
+
+  @Override
+  public synchronized void inodeReleased(int id) {
+    record.clear();
+    put(inodeOffset(id), record.put(new byte[Superblock.INODE_SIZE]).flip());
+  }
+
+  @Override
+  public synchronized void entryAdded(int parentId, String name, int id) {
+    int slot = entrySlots.allocate();
+    if (slot == -1) {
+      Log.error("Entry table is full, [" + name + "] is not persisted.");
+      return;
+    }
+    entries.computeIfAbsent(parentId, k -> new HashMap<>()).put(name, slot);
+    record.clear();
+    record.put((byte) 1).put((byte) 0).putShort((short) name.length())
+        .putInt(parentId)
+        .putInt(id);
+    for (int i = 0; i < name.length(); i++) {
+      record.putChar(name.charAt(i));
+    }
+    put(entryOffset(slot), record.flip());
+  }
+
+  @Override
+  public synchronized void entryRemoved(int parentId, String name) {
+    Map<String, Integer> slots = entries.get(parentId);
+    Integer slot = slots == null ? null : slots.remove(name);
+    if (slot == null) {
+      return;
+    }
+    if (slots.isEmpty()) {
+      entries.remove(parentId);
+    }
+    entrySlots.free(slot);
+    record.clear();
+    put(entryOffset(slot), record.put(FREE).flip());
+  }
+
+  @Override
+  public synchronized void blocksChanged(Extents extents, int from) {
+    for (int i = Math.max(0, from - 1); i < extents.size(); i++) {
+      record.clear();
+      record.putInt(i + 1 < extents.size() ? extents.getStart(i + 1) : -1)
+          .putInt(extents.getLogical(i))
+          .putInt(extents.getLength(i));
+      put(mapOffset(extents.getStart(i)), record.flip());
+    }
+  }
+
+  @Override
+  public synchronized void blockUsed(int block, boolean used) {
+    int index = block / 64;
+    bitmap[index] = used ? bitmap[index] | (1L << block) : bitmap[index] & ~(1L << block);
+    record.clear();
+    put((int) superblock.getBitmapOffset() + Long.BYTES * index,
+        record.putLong(bitmap[index]).flip());
+  }
+
+  /**
+   * Formatting rewrites the whole metadata region, so it bypasses the journal: pending
+   * transactions are checkpointed first and the cleared region is forced right away. Records not
+   * committed yet, as in write-back mode, are committed along with them, or a later commit would
+   * replay them over the fresh region.
+   */
+  @Override
+  public synchronized void formatted() {
+    try {
+      if (journal != null) {
+        journal.commit();
+        journal.checkpoint();
+      }
+      int from = (int) superblock.getBitmapOffset();
+      ByteBuffer zeros = ByteBuffer.allocate(Superblock.PAGE_SIZE);
+      for (int offset = from; offset < superblock.getDataOffset(); offset += zeros.capacity()) {
+        zeros.clear().limit((int) Math.min(zeros.capacity(), superblock.getDataOffset() - offset));
+        write(offset, zeros);
+      }
+      record.clear();
+      record.put(DIRECTORY).put(new byte[3]).putInt(0).putInt(-1).putInt(-1).putInt(0);
+      write(inodeOffset(-1), record.flip());
+      forceMeta();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    Arrays.fill(bitmap, 0L);
+    entries.clear();
+    entrySlots.clear();
+    indexed = true;
+    heads = null;
+    next = null;
+  }
+
+  void write(int offset, ByteBuffer src) {
+    meta.duplicate().position(offset).put(src);
+  }
+
+  void forceMeta() {
+    meta.force();
+  }
+
+  void forceData() {
+    device.sync();
+    data.force();
+  }
+
+  private void put(int offset, ByteBuffer src) {
+    if (journal != null) {
+      journal.append(offset, src);
+    } else {
+      write(offset, src);
+    }
+  }
+
+  /**
+   * Reads inode {@code id} along with any of its ancestors not read yet, from the top down, and
+   * returns it or {@code null} if it is free. A parent that is free or not a directory is
+   * replaced by the root, as it would be after a crash.
+   */
+  private Descriptor load(int id, Descriptor root) {
+    Deque<Integer> pending = new ArrayDeque<>();
+    int current = id;
+    while (current != -1 && !descriptors.isResolved(current)
+        && meta.get(inodeOffset(current)) != FREE && pending.size() <= superblock.getInodeCount()) {
+      pending.push(current);
+      int parentId = meta.getInt(inodeOffset(current) + 8);
+      current = parentId >= 0 && parentId < superblock.getInodeCount()
+          && meta.get(inodeOffset(parentId)) == DIRECTORY ? parentId : -1;
+    }
+    Descriptor descriptor = null;
+    while (!pending.isEmpty()) {
+      int inode = pending.pop();
+      int parentId = meta.getInt(inodeOffset(inode) + 8);
+      Descriptor parent = parentId >= 0 && parentId < superblock.getInodeCount()
+          && meta.get(inodeOffset(parentId)) == DIRECTORY ? descriptors.get(parentId) : null;
+      descriptor = readInode(inode, parent == null || !parent.isDirectory() ? root : parent);
+      if (descriptor.isDirectory()) {
+        descriptor.deferEntries(links -> readEntries(inode, links));
+      }
+      descriptors.restore(inode, descriptor);
+    }
+    return descriptor;
+  }
+
+  /**
+   * Fills in the entries of directory {@code parentId}. Entries are not grouped by directory on
+   * disk, so the first call indexes the whole entry table in one pass and also rebuilds the
+   * free entry slots from it. Until then no entry can have changed, so the table on disk is
+   * still current even with records pending in the journal.
+   */
+  private void readEntries(int parentId, Map<String, Descriptor> links) {
+    synchronized (descriptors) {
+      if (!indexed) {
+        index();
+      }
+      if (heads == null) {
+        return;
+      }
+      for (int slot = heads[parentId + 1]; slot != -1; slot = next[slot]) {
+        int offset = entryOffset(slot);
+        Descriptor child = descriptors.get(meta.getInt(offset + 8));
+        if (child == null) {
+          continue;
+        }
+        char[] name = new char[meta.getShort(offset + 2)];
+        for (int i = 0; i < name.length; i++) {
+          name[i] = meta.getChar(offset + Superblock.ENTRY_HEADER_SIZE + 2 * i);
+        }
+        String key = new String(name);
+        links.put(key, child);
+        entries.computeIfAbsent(parentId, k -> new HashMap<>()).put(key, slot);
+      }
+      heads[parentId + 1] = -1;
+    }
+  }
+
+  private void index() {
+    heads = new int[superblock.getInodeCount() + 1];
+    next = new int[superblock.getEntryCount()];
+    Arrays.fill(heads, -1);
+    long[] words = new long[(superblock.getEntryCount() + 63) / 64];
+    for (int slot = superblock.getEntryCount() - 1; slot >= 0; slot--) {
+      int offset = entryOffset(slot);
+      if (meta.get(offset) == FREE) {
+        continue;
+      }
+      words[slot / 64] |= 1L << slot;
+      int parentId = meta.getInt(offset + 4);
+      if (parentId >= -1 && parentId < superblock.getInodeCount()) {
+        next[slot] = heads[parentId + 1];
+        heads[parentId + 1] = slot;
+      }
+    }
+    entrySlots = new BlockAllocator(superblock.getEntryCount(), words);
+    indexed = true;
+  }
+
+  private Descriptor readInode(int id, Descriptor parent) {
+    int offset = inodeOffset(id);
+    byte type = meta.get(offset);
+    Extents extents = readExtents(offset);
+    Descriptor descriptor = new Descriptor(type == DIRECTORY, type == SYMLINK, null,
+        meta.getInt(offset + 4), parent, type == SYMLINK ? readTarget(offset, extents) : null);
+    descriptor.setLinksAmount(meta.getInt(offset + 24));
+    descriptor.getExtents().addAll(extents);
+    return descriptor;
+  }
+
+  private Extents readExtents(int offset) {
+    Extents extents = new Extents();
+    int block = meta.getInt(offset + 12);
+    for (int i = meta.getInt(offset + 16); i > 0 && block != -1; i--) {
+      int entry = mapOffset(block);
+      extents.add(meta.getInt(entry + 4), block, meta.getInt(entry + 8));
+      block = meta.getInt(entry);
+    }
+    return extents;
+  }
+
+  private String readTarget(int offset, Extents extents) {
+    ByteBuffer target = ByteBuffer.allocate(meta.getInt(offset + 20));
+    for (int i = 0; target.hasRemaining() && i < extents.getBlockCount(); i++) {
+      device.read(extents.get(i), 0,
+          target.limit(Math.min(target.capacity(), target.position() + device.getBlockSize())));
+    }
+    return new String(target.array(), StandardCharsets.UTF_8);
+  }
+
+  private void readBitmap() {
+    for (int i = 0; i < bitmap.length; i++) {
+      bitmap[i] = meta.getLong((int) superblock.getBitmapOffset() + Long.BYTES * i);
+    }
+  }
+
+  private int inodeOffset(int id) {
+    return (int) superblock.getInodeOffset() + Superblock.INODE_SIZE * (id + 1);
+  }
+
+  private int entryOffset(int slot) {
+    return (int) superblock.getEntryOffset() + superblock.getEntrySize() * slot;
+  }
+
+  private int mapOffset(int block) {
+    return (int) superblock.getBlockMapOffset() + Superblock.MAP_ENTRY_SIZE * block;
+  }
+}
@@ -0,0 +1,80 @@
+package com.ekros.cp.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import lombok.Getter;
+
+/**
+ * Block device over a region of a file starting at {@code offset}, accessed with positional
+ * reads and writes. Nothing is mapped, so the region can be larger than 2 GB, and blocks past the
+ * end of the file read as zeros.
+ */
+@Getter
+public class FileBlockDevice implements BlockDevice {
+
+  private final FileChannel channel;
+  private final long offset;
+  private final int blockSize;
+  private final int blockCount;
+
+  public FileBlockDevice(FileChannel channel, long offset, int blockSize, int blockCount) {
+    this.channel = channel;
+    this.offset = offset;
+    this.blockSize = blockSize;
+    this.blockCount = blockCount;
+  }
+
+  @Override
+  public void read(int block, int offset, ByteBuffer dst) {
+    long position = position(block, offset, dst.remaining());
+    try {
+      while (dst.hasRemaining()) {
+        int count = channel.read(dst, position);
+        if (count == -1) {
+          break;
+        }
+        position += count;
+      }
+      while (dst.hasRemaining()) {
+        dst.put((byte) 0);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void write(int block, int offset, ByteBuffer src) {
+    long position = position(block, offset, src.remaining());
+    try {
+      while (src.hasRemaining()) {
+        position += channel.write(src, position);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void zero(int block) {
+    write(block, 0, ByteBuffer.allocate(blockSize));
+  }
+
+  public void force() {
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private long position(int block, int offset, int length) {
+    if (block < 0 || block >= blockCount || offset < 0 || offset + length > blockSize) {
+      throw new IndexOutOfBoundsException(
+          "Block " + block + " range [" + offset + ", " + (offset + length) + ")");
+    }
+    return this.offset + (long) block * blockSize + offset;
+  }
+}
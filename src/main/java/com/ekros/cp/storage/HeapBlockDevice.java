@@ -0,0 +1,15 @@
+package com.ekros.cp.storage;
+
+import java.nio.ByteBuffer;
+
+public class HeapBlockDevice extends ByteBufferBlockDevice {
+
+  public HeapBlockDevice(int blockSize, int blockCount) {
+    super(blockSize, blockCount);
+  }
+
+  @Override
+  protected ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocate(capacity);
+  }
+}
@@ -0,0 +1,357 @@
+package com.ekros.cp.storage;
+
+import com.ekros.cp.model.BlockAllocator;
+import com.ekros.cp.model.Descriptor;
+import com.ekros.cp.model.Extents;
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.model.InodeTable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact, versioned stream format of a whole file system, for moving it between images. Unlike
+ * a {@link DiskImage}, which reserves room for every inode, entry and block, a dump only holds
+ * what is in use:
+ *
+ * <pre>
+ * header     magic, version, geometry (block size, block count, inode count, name length,
+ *            max links)
+ * inodes     count, then per inode: id, type, parent id, size, links, run count,
+ *            runs (logical, start, length), symlink target length and bytes
+ * entries    directory count, then per directory: id (-1 for the root), entry count,
+ *            entries (name length, UTF-8 name, inode id); version 1 wrote names with
+ *            {@link DataOutputStream#writeUTF}, which cannot hold names over 64 KB
+ * bitmap     word count, words
+ * data       every used block in ascending order, block size bytes each
+ * trailer    CRC32 of everything before it
+ * </pre>
+ *
+ * Both directions stream over the tables in id order and never recurse, so time is linear and
+ * stack use constant however deep the tree is.
+ */
+public final class ImageCodec {
+
+  public static final int MAGIC = 0x454b4653;
+  public static final int VERSION = 2;
+
+  private static final byte FILE = 1;
+  private static final byte DIRECTORY = 2;
+  private static final byte SYMLINK = 3;
+
+  private ImageCodec() {
+  }
+
+  /**
+   * Writes {@code fileSystem} to {@code out}, holding its namespace lock for the whole dump.
+   */
+  public static void dump(FileSystem fileSystem, OutputStream out) throws IOException {
+    CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(out),
+        new CRC32());
+    DataOutputStream data = new DataOutputStream(checked);
+    try {
+      fileSystem.exclusive(() -> {
+        try {
+          write(fileSystem, data);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    data.writeInt((int) checked.getChecksum().getValue());
+    data.flush();
+  }
+
+  /**
+   * Reads a dump into a fresh image over {@code channel}. The returned image has no journal; its
+   * contents are forced before it is returned.
+   */
+  public static DiskImage restore(InputStream in, FileChannel channel) throws IOException {
+    CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+    DataInputStream data = new DataInputStream(checked);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a file system dump");
+    }
+    int version = data.readInt();
+    if (version > VERSION) {
+      throw new IOException("Unsupported dump version " + version);
+    }
+    Geometry geometry;
+    try {
+      geometry = new Geometry(data.readInt(), data.readInt(), data.readInt(), data.readInt(),
+          data.readInt());
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Corrupt dump header: " + e.getMessage(), e);
+    }
+    DiskImage image = DiskImage.create(channel, geometry);
+    try {
+      read(geometry, version, data, image);
+      int crc = (int) checked.getChecksum().getValue();
+      if (data.readInt() != crc) {
+        throw new IOException("Dump checksum mismatch");
+      }
+      image.flush();
+    } catch (IOException | RuntimeException e) {
+      image.close();
+      throw e;
+    }
+    return image;
+  }
+
+  private static void write(FileSystem fileSystem, DataOutputStream out) throws IOException {
+    Geometry geometry = fileSystem.getGeometry();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(geometry.getBlockSize());
+    out.writeInt(geometry.getBlockCount());
+    out.writeInt(geometry.getInodeCount());
+    out.writeInt(geometry.getNameLength());
+    out.writeInt(geometry.getMaxLinks());
+
+    InodeTable descriptors = fileSystem.getDescriptors();
+    out.writeInt(descriptors.size());
+    int directories = 1;
+    for (int id = 0; id < geometry.getInodeCount(); id++) {
+      Descriptor descriptor = descriptors.get(id);
+      if (descriptor == null) {
+        continue;
+      }
+      if (descriptor.isDirectory()) {
+        directories++;
+      }
+      Extents extents = descriptor.getExtents();
+      out.writeInt(id);
+      out.writeByte(descriptor.isDirectory() ? DIRECTORY
+          : descriptor.isSymlink() ? SYMLINK : FILE);
+      out.writeInt(descriptor.getParentId());
+      out.writeInt(descriptor.getSize());
+      out.writeInt(descriptor.getLinksAmount());
+      out.writeInt(extents.size());
+      for (int i = 0; i < extents.size(); i++) {
+        out.writeInt(extents.getLogical(i));
+        out.writeInt(extents.getStart(i));
+        out.writeInt(extents.getLength(i));
+      }
+      byte[] target = descriptor.isSymlink()
+          ? descriptor.getSymlink().getBytes(StandardCharsets.UTF_8) : new byte[0];
+      out.writeInt(target.length);
+      out.write(target);
+    }
+
+    out.writeInt(directories);
+    writeEntries(-1, fileSystem.getRoot(), out);
+    for (int id = 0; id < geometry.getInodeCount(); id++) {
+      Descriptor descriptor = descriptors.get(id);
+      if (descriptor != null && descriptor.isDirectory()) {
+        writeEntries(id, descriptor, out);
+      }
+    }
+
+    BlockAllocator allocator = fileSystem.getAllocator();
+    long[] bitmap = new long[(geometry.getBlockCount() + 63) / 64];
+    for (int block = 0; block < geometry.getBlockCount(); block++) {
+      if (allocator.isUsed(block)) {
+        bitmap[block / 64] |= 1L << block;
+      }
+    }
+    out.writeInt(bitmap.length);
+    for (long word : bitmap) {
+      out.writeLong(word);
+    }
+
+    BlockDevice device = fileSystem.getDevice();
+    ByteBuffer buffer = ByteBuffer.allocate(geometry.getBlockSize());
+    for (int block = 0; block < geometry.getBlockCount(); block++) {
+      if ((bitmap[block / 64] & (1L << block)) != 0) {
+        device.read(block, 0, buffer.clear());
+        out.write(buffer.array());
+      }
+    }
+  }
+
+  private static void writeEntries(int id, Descriptor directory, DataOutputStream out)
+      throws IOException {
+    Map<String, Descriptor> entries = directory.getNameLinks();
+    out.writeInt(id);
+    out.writeInt(entries.size());
+    for (Map.Entry<String, Descriptor> entry : entries.entrySet()) {
+      byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      out.writeInt(name.length);
+      out.write(name);
+      out.writeInt(entry.getValue().getId());
+    }
+  }
+
+  private static void read(Geometry geometry, int version, DataInputStream in, DiskImage image)
+      throws IOException {
+    int inodeCount = geometry.getInodeCount();
+    int count = in.readInt();
+    if (count < 0 || count > inodeCount) {
+      throw new IOException("Corrupt inode count " + count);
+    }
+    Record[] records = new Record[inodeCount];
+    for (int i = 0; i < count; i++) {
+      Record record = new Record(in, geometry);
+      if (records[record.id] != null) {
+        throw new IOException("Duplicate inode " + record.id);
+      }
+      records[record.id] = record;
+    }
+
+    Descriptor root = new Descriptor(true, false, null, 0, null, null);
+    Descriptor[] descriptors = new Descriptor[inodeCount];
+    InodeTable table = new InodeTable(inodeCount);
+    boolean[] queued = new boolean[inodeCount];
+    Deque<Record> pending = new ArrayDeque<>();
+    for (Record first : records) {
+      for (Record record = first; record != null && !queued[record.id];
+          record = record.parent(records)) {
+        queued[record.id] = true;
+        pending.push(record);
+      }
+      while (!pending.isEmpty()) {
+        Record record = pending.pop();
+        Descriptor parent = record.parent(records) == null ? null : descriptors[record.parentId];
+        Descriptor descriptor = record.toDescriptor(parent == null ? root : parent);
+        table.restore(record.id, descriptor);
+        descriptors[record.id] = descriptor;
+        image.inodeChanged(descriptor);
+        if (!descriptor.getExtents().isEmpty()) {
+          image.blocksChanged(descriptor.getExtents(), 0);
+        }
+      }
+    }
+
+    int directories = in.readInt();
+    for (int i = 0; i < directories; i++) {
+      int id = in.readInt();
+      if (id != -1 && (id < 0 || id >= inodeCount || records[id] == null
+          || records[id].type != DIRECTORY)) {
+        throw new IOException("Entries of inode " + id + ", which is not a directory");
+      }
+      int entries = in.readInt();
+      for (int j = 0; j < entries; j++) {
+        String name = version == 1 ? in.readUTF() : readName(geometry, in);
+        int child = in.readInt();
+        if (child < 0 || child >= inodeCount || descriptors[child] == null) {
+          throw new IOException("Entry [" + name + "] refers to missing inode " + child);
+        }
+        image.entryAdded(id, name, child);
+      }
+    }
+
+    int words = in.readInt();
+    if (words != (geometry.getBlockCount() + 63) / 64) {
+      throw new IOException("Corrupt bitmap length " + words);
+    }
+    long[] bitmap = new long[words];
+    for (int i = 0; i < words; i++) {
+      bitmap[i] = in.readLong();
+    }
+
+    BlockDevice device = image.getDevice();
+    byte[] buffer = new byte[geometry.getBlockSize()];
+    for (int block = 0; block < geometry.getBlockCount(); block++) {
+      if ((bitmap[block / 64] & (1L << block)) != 0) {
+        image.blockUsed(block, true);
+        in.readFully(buffer);
+        device.write(block, 0, ByteBuffer.wrap(buffer));
+      }
+    }
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 name, checking the length before allocating for it. A UTF-16
+   * char never takes more than three bytes.
+   */
+  private static String readName(Geometry geometry, DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length <= 0 || length > 3L * geometry.getNameLength()) {
+      throw new IOException("Corrupt entry name of " + length + " bytes");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * One inode as read from the dump, kept until its parent directory exists.
+   */
+  private static class Record {
+
+    private final int id;
+    private final byte type;
+    private final int parentId;
+    private final int size;
+    private final int links;
+    private final Extents extents = new Extents();
+    private final String target;
+
+    Record(DataInputStream in, Geometry geometry) throws IOException {
+      id = in.readInt();
+      type = in.readByte();
+      parentId = in.readInt();
+      size = in.readInt();
+      links = in.readInt();
+      if (id < 0 || id >= geometry.getInodeCount() || type < FILE || type > SYMLINK
+          || parentId < -1 || parentId >= geometry.getInodeCount()) {
+        throw new IOException("Corrupt inode record " + id);
+      }
+      int runs = in.readInt();
+      if (runs < 0 || runs > geometry.getBlockCount()) {
+        throw new IOException("Corrupt inode record " + id + ": " + runs + " block runs");
+      }
+      for (int i = 0; i < runs; i++) {
+        int logical = in.readInt();
+        int start = in.readInt();
+        int length = in.readInt();
+        if (logical < 0 || start < 0 || length <= 0
+            || (long) start + length > geometry.getBlockCount()) {
+          throw new IOException("Corrupt block run of inode " + id);
+        }
+        extents.add(logical, start, length);
+      }
+      int length = in.readInt();
+      if (length < 0 || length > (long) geometry.getBlockCount() * geometry.getBlockSize()) {
+        throw new IOException("Corrupt inode record " + id + ": target of " + length + " bytes");
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      target = type == SYMLINK ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Returns the record of the parent directory, or {@code null} for the root. A parent that is
+     * missing or not a directory is replaced by the root, as on mount.
+     */
+    Record parent(Record[] records) {
+      Record parent = parentId == -1 ? null : records[parentId];
+      return parent == null || parent.type != DIRECTORY ? null : parent;
+    }
+
+    Descriptor toDescriptor(Descriptor parent) {
+      Descriptor descriptor = new Descriptor(type == DIRECTORY, type == SYMLINK, null, size,
+          parent, target);
+      descriptor.setLinksAmount(links);
+      descriptor.getExtents().addAll(extents);
+      return descriptor;
+    }
+  }
+}
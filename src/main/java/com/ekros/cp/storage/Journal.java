@@ -0,0 +1,219 @@
+package com.ekros.cp.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead redo journal for the metadata region of a {@link DiskImage}.
+ *
+ * <p>Record writes of one operation are buffered until {@link #commit()}, which appends them as
+ * a single checksummed transaction: {@code [length][offset, length, bytes]...[crc32]}. The journal
+ * is forced once per {@code commitSize} transactions or every {@code commitInterval} ms, whichever
+ * comes first. Committed transactions are applied to the mapped image by a background checkpoint
+ * once the journal outgrows {@code checkpointSize}; replaying them is idempotent, so a crash at any
+ * point leaves the image recoverable up to the last forced commit.
+ */
+public class Journal implements Closeable {
+
+  public static final int COMMIT_SIZE = Integer.getInteger("fs.journal.commitSize", 64);
+  public static final long COMMIT_INTERVAL = Long.getLong("fs.journal.commitInterval", 50);
+  public static final long CHECKPOINT_SIZE = Long.getLong("fs.journal.checkpointSize", 1 << 20);
+
+  private static final int MAGIC = 0x454b4a4e;
+  private static final int HEADER_SIZE = 8;
+
+  private final FileChannel channel;
+  private final DiskImage image;
+  private final int commitSize;
+  private final long checkpointSize;
+  private final ScheduledExecutorService flusher;
+  private final CRC32 crc = new CRC32();
+  private final Object checkpointLock = new Object();
+  private ByteBuffer transaction = ByteBuffer.allocate(256);
+  private List<ByteBuffer> committed = new ArrayList<>();
+  private long position = HEADER_SIZE;
+  private int unforced;
+
+  public Journal(FileChannel channel, DiskImage image) throws IOException {
+    this(channel, image, COMMIT_SIZE, COMMIT_INTERVAL, CHECKPOINT_SIZE);
+  }
+
+  public Journal(FileChannel channel, DiskImage image, int commitSize, long commitInterval,
+      long checkpointSize) throws IOException {
+    this.channel = channel;
+    this.image = image;
+    this.commitSize = commitSize;
+    this.checkpointSize = checkpointSize;
+    reset();
+    flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "journal-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleWithFixedDelay(this::tick, commitInterval, commitInterval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Applies every complete transaction found in {@code channel} to {@code image}. A torn or
+   * corrupted tail ends the replay. Returns the number of transactions applied.
+   */
+  public static int replay(FileChannel channel, DiskImage image) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    if (channel.read(header, 0) != HEADER_SIZE || header.getInt(0) != MAGIC) {
+      return 0;
+    }
+    CRC32 crc = new CRC32();
+    long position = HEADER_SIZE;
+    int count = 0;
+    ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+    while (channel.read(length.clear(), position) == Integer.BYTES) {
+      int size = length.getInt(0);
+      if (size <= 0 || position + Integer.BYTES * 2 + size > channel.size()) {
+        break;
+      }
+      ByteBuffer frame = ByteBuffer.allocate(size + Integer.BYTES);
+      channel.read(frame, position + Integer.BYTES);
+      crc.reset();
+      crc.update(frame.array(), 0, size);
+      if ((int) crc.getValue() != frame.getInt(size)) {
+        break;
+      }
+      apply(frame.limit(size).position(0), image);
+      position += Integer.BYTES * 2 + size;
+      count++;
+    }
+    image.forceMeta();
+    return count;
+  }
+
+  public synchronized void append(int offset, ByteBuffer src) {
+    int size = Integer.BYTES * 2 + src.remaining();
+    if (transaction.remaining() < size) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(transaction.capacity() * 2,
+          transaction.position() + size));
+      transaction = grown.put(transaction.flip());
+    }
+    transaction.putInt(offset).putInt(src.remaining()).put(src);
+  }
+
+  public synchronized void commit() throws IOException {
+    if (transaction.position() == 0) {
+      return;
+    }
+    int size = transaction.position();
+    crc.reset();
+    crc.update(transaction.array(), 0, size);
+    ByteBuffer frame = ByteBuffer.allocate(size + Integer.BYTES * 2);
+    frame.putInt(size).put(transaction.array(), 0, size).putInt((int) crc.getValue()).flip();
+    while (frame.hasRemaining()) {
+      position += channel.write(frame, position);
+    }
+    committed.add(ByteBuffer.wrap(transaction.array(), 0, size).slice());
+    transaction = ByteBuffer.allocate(transaction.capacity());
+    if (++unforced >= commitSize) {
+      force();
+    }
+  }
+
+  /**
+   * Makes every committed transaction durable. Data blocks are forced first, so committed
+   * metadata never points at data that did not reach the disk.
+   */
+  public synchronized void force() throws IOException {
+    if (unforced == 0) {
+      return;
+    }
+    image.forceData();
+    channel.force(false);
+    unforced = 0;
+  }
+
+  /**
+   * Applies committed transactions to the image and empties the journal. The bulk of the work
+   * runs without blocking committers; only transactions committed in the meantime are applied
+   * under the lock before the journal is truncated.
+   */
+  public void checkpoint() throws IOException {
+    synchronized (checkpointLock) {
+      List<ByteBuffer> batch;
+      synchronized (this) {
+        force();
+        if (committed.isEmpty()) {
+          return;
+        }
+        batch = committed;
+        committed = new ArrayList<>();
+      }
+      for (ByteBuffer body : batch) {
+        apply(body, image);
+      }
+      image.forceMeta();
+      synchronized (this) {
+        if (!committed.isEmpty()) {
+          force();
+          for (ByteBuffer body : committed) {
+            apply(body, image);
+          }
+          committed.clear();
+          image.forceMeta();
+        }
+        reset();
+      }
+    }
+  }
+
+  public synchronized long size() {
+    return position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    commit();
+    checkpoint();
+    channel.close();
+  }
+
+  private void tick() {
+    try {
+      force();
+      if (size() >= checkpointSize) {
+        checkpoint();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void reset() throws IOException {
+    channel.truncate(0);
+    channel.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(0).flip(), 0);
+    channel.force(false);
+    position = HEADER_SIZE;
+  }
+
+  private static void apply(ByteBuffer body, DiskImage image) {
+    ByteBuffer records = body.duplicate();
+    while (records.hasRemaining()) {
+      int offset = records.getInt();
+      int length = records.getInt();
+      ByteBuffer src = records.slice().limit(length);
+      image.write(offset, src);
+      records.position(records.position() + length);
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package com.ekros.cp.storage;
+
+import com.ekros.cp.model.Geometry;
+import java.nio.ByteBuffer;
+import lombok.Getter;
+
+/**
+ * {@link Geometry} of a disk image and the offsets of its regions. Every region starts on a page
+ * boundary, so a change to one record dirties only the page that holds it:
+ *
+ * <pre>
+ * superblock | block bitmap | inode table | entry table | block map | data
+ * </pre>
+ *
+ * Inode record 0 is the root directory, record {@code id + 1} holds descriptor {@code id}. The
+ * block map entry of the first block of each run holds the next run's first block, the run's
+ * logical block and its length.
+ */
+@Getter
+public class Superblock {
+
+  public static final int MAGIC = 0x454b4653;
+  public static final int VERSION = 2;
+  public static final int PAGE_SIZE = 4096;
+  public static final int INODE_SIZE = 32;
+  public static final int MAP_ENTRY_SIZE = 12;
+  public static final int ENTRY_HEADER_SIZE = 12;
+
+  private final Geometry geometry;
+
+  public Superblock(Geometry geometry) {
+    this.geometry = geometry;
+  }
+
+  public static Superblock read(ByteBuffer buffer) {
+    if (buffer.getInt(0) != MAGIC) {
+      throw new IllegalStateException("Not a file system image");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IllegalStateException("Unsupported image version " + buffer.getInt(4));
+    }
+    return new Superblock(new Geometry(buffer.getInt(8), buffer.getInt(12), buffer.getInt(16),
+        buffer.getInt(20), buffer.getInt(24)));
+  }
+
+  public void write(ByteBuffer buffer) {
+    buffer.putInt(0, MAGIC)
+        .putInt(4, VERSION)
+        .putInt(8, geometry.getBlockSize())
+        .putInt(12, geometry.getBlockCount())
+        .putInt(16, geometry.getInodeCount())
+        .putInt(20, geometry.getNameLength())
+        .putInt(24, geometry.getMaxLinks());
+  }
+
+  public int getBlockSize() {
+    return geometry.getBlockSize();
+  }
+
+  public int getBlockCount() {
+    return geometry.getBlockCount();
+  }
+
+  public int getInodeCount() {
+    return geometry.getInodeCount();
+  }
+
+  public int getEntryCount() {
+    return Math.multiplyExact(geometry.getInodeCount(), geometry.getMaxLinks());
+  }
+
+  public int getEntrySize() {
+    return align(ENTRY_HEADER_SIZE + 2 * geometry.getNameLength(), 4);
+  }
+
+  public long getBitmapOffset() {
+    return PAGE_SIZE;
+  }
+
+  public long getInodeOffset() {
+    return align(getBitmapOffset() + Long.BYTES * ((getBlockCount() + 63L) / 64), PAGE_SIZE);
+  }
+
+  public long getEntryOffset() {
+    return align(getInodeOffset() + (long) INODE_SIZE * (getInodeCount() + 1L), PAGE_SIZE);
+  }
+
+  public long getBlockMapOffset() {
+    return align(getEntryOffset() + (long) getEntrySize() * getEntryCount(), PAGE_SIZE);
+  }
+
+  public long getDataOffset() {
+    return align(getBlockMapOffset() + (long) MAP_ENTRY_SIZE * getBlockCount(), PAGE_SIZE);
+  }
+
+  public long getImageSize() {
+    return getDataOffset() + getDataSize();
+  }
+
+  public long getDataSize() {
+    return (long) getBlockSize() * getBlockCount();
+  }
+
+  private static long align(long value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+
+  private static int align(int value, int alignment) {
+    return (value + alignment - 1) / alignment * alignment;
+  }
+}
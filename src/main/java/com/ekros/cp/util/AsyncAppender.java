@@ -0,0 +1,100 @@
+package com.ekros.cp.util;
+
+import com.ekros.cp.util.Log.Appender;
+import com.ekros.cp.util.Log.Level;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appender that puts messages into a fixed ring buffer and writes them to another appender from
+ * a background thread. Producers claim a slot with one atomic increment and never wait: when the
+ * writer falls a whole ring behind, new messages are dropped and counted instead.
+ */
+public class AsyncAppender implements Appender {
+
+  public static final int CAPACITY = Integer.getInteger("fs.log.bufferSize", 8192);
+
+  private final Appender target;
+  private final AtomicReferenceArray<Entry> ring;
+  private final int mask;
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final Thread thread;
+  private volatile long written;
+
+  public AsyncAppender(Appender target) {
+    this(target, CAPACITY);
+  }
+
+  public AsyncAppender(Appender target, int capacity) {
+    this.target = target;
+    int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    thread = new Thread(this::run, "log-writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void append(Level level, String message) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - written >= ring.length()) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    ring.set((int) sequence & mask, new Entry(sequence, level, message));
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Waits until the writer has caught up with every message appended before the call.
+   */
+  @Override
+  public void flush() {
+    long target = claimed.get();
+    while (written < target && thread.isAlive()) {
+      LockSupport.unpark(thread);
+      Thread.onSpinWait();
+      Thread.yield();
+    }
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  private void run() {
+    long next = 0;
+    while (true) {
+      Entry entry = ring.get((int) next & mask);
+      if (entry == null || entry.sequence != next) {
+        LockSupport.parkNanos(this, 1_000_000);
+        continue;
+      }
+      try {
+        target.append(entry.level, entry.message);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+      written = ++next;
+    }
+  }
+
+  private static class Entry {
+
+    private final long sequence;
+    private final Level level;
+    private final String message;
+
+    Entry(long sequence, Level level, String message) {
+      this.sequence = sequence;
+      this.level = level;
+      this.message = message;
+    }
+  }
+}
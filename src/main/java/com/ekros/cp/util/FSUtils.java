@@ -1,175 +1,227 @@
 package com.ekros.cp.util;
 
 import com.ekros.cp.model.FileSystem;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import com.ekros.cp.model.Geometry;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 
+/**
+ * The image the console works with. Everything is delegated to one {@link MountedFileSystem};
+ * code that needs several images at once should use those directly.
+ */
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
 public class FSUtils {
 
   public static FileSystem fileSystem;
+  private static MountedFileSystem mounted;
+  private static Path path = OsUtils.getPath();
 
   public static boolean mount() {
-    fileSystem = deserialize(OsUtils.readFs());
-    return !Objects.isNull(fileSystem);
+    return mount(path);
+  }
+
+  public static boolean mount(Path image) {
+    close();
+    path = image;
+    try {
+      mounted = MountedFileSystem.mount(image);
+      fileSystem = mounted.getFileSystem();
+    } catch (IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+    return mounted != null;
   }
 
   public static boolean unmount() {
-    update();
-    fileSystem = null;
+    if (fileSystem != null) {
+      fileSystem.closeAll();
+    }
+    close();
     return true;
   }
 
   public static boolean clear(){
-    fileSystem = null;
-    return OsUtils.clear();
+    close();
+    return OsUtils.clear(path);
   }
 
-  public static boolean open(String name){
-    boolean status = fileSystem.openFile(name);
-    if(!status){
-      Log.error("No such file [" + name + "].");
-    }
-    return status;
+  public static boolean isMounted() {
+    return mounted != null;
+  }
+
+  public static boolean isWriteBack() {
+    return mounted != null && mounted.isWriteBack();
+  }
+
+  public static Path getPath() {
+    return path;
+  }
+
+  public static int open(String name){
+    return mounted.open(name);
   }
 
   public static boolean close(int fd) {
-    boolean status = fileSystem.closeFile(fd);
-    if(status){
-      Log.info("File with fd [" + fd + "] closed.");
-    }else{
-      Log.error("File with fd [" + fd + "] not found.");
-    }
-    return status;
+    return mounted.close(fd);
   }
 
   public static String read(int fd, int offset, int size){
-    String data = fileSystem.read(fd, offset, size);
-    Log.info(data);
-    return data;
+    return mounted.read(fd, offset, size);
   }
 
   public static boolean write(int fd, int offset, int size){
-    boolean status = fileSystem.write(fd, offset, size);
-    if(status){
-      Log.info("Write status: " + true);
-    }else{
-      Log.error("Write status: " + false);
-    }
-    update();
-    return status;
+    return mounted.write(fd, offset, size);
+  }
+
+  public static int read(int fd, long offset, ByteBuffer dst){
+    return mounted.read(fd, offset, dst);
+  }
+
+  public static int write(int fd, long offset, ByteBuffer src){
+    return mounted.write(fd, offset, src);
   }
 
   public static boolean truncate(String name, int size){
-    boolean status = fileSystem.truncate(name, size);
-    if(status){
-      Log.info("Truncated [" + name + "] to " + size + " size.");
-    }else{
-      Log.error("Truncate failed.");
-    }
-    update();
-    return status;
+    return mounted.truncate(name, size);
   }
 
   public static boolean link(String name1, String name2){
-    boolean status = fileSystem.link(name1, name2);
-    if(status){
-      Log.info("Link [" + name1 + "] added.");
-    }else{
-      Log.error("Link [" + name2 + "] not found.");
-    }
-    update();
-    return status;
+    return mounted.link(name1, name2);
   }
 
   public static boolean unlink(String name){
-    boolean status = fileSystem.unlink(name);
-    if(status){
-      Log.info("Link [" + name + "] removed.");
-    }else{
-      Log.error("Link [" + name + "] not found.");
-    }
-    update();
-    return status;
+    return mounted.unlink(name);
   }
 
   public static String fstat(int id){
-    if(!fileSystem.getDescriptors().containsKey(id)){
-      return "Descriptor " + id + " not found.";
-    }
-    return fileSystem.getDescriptors().get(id).toString();
+    return mounted.fstat(id);
   }
 
   public static void symlink(String str, String path){
-    boolean status = fileSystem.createSymlink(str, path);
-    update();
-    Log.info("symlink status: " + status);
+    mounted.symlink(str, path);
+  }
+
+  public static boolean sync(){
+    return mounted.sync();
+  }
+
+  public static boolean fsync(int fd){
+    return mounted.fsync(fd);
+  }
+
+  public static boolean writeBack(long interval, int threshold){
+    try {
+      mounted.writeBack(interval, threshold);
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      Log.error(e.getMessage());
+      return false;
+    }
+  }
+
+  public static boolean writeThrough(){
+    try {
+      mounted.writeThrough();
+      return true;
+    } catch (IOException e) {
+      Log.error(e.getMessage());
+      return false;
+    }
+  }
+
+  public static void prefetch(){
+    mounted.prefetch();
+  }
+
+  public static String stats(){
+    return mounted.stats();
+  }
+
+  public static String cache(){
+    return mounted.cache();
   }
 
   public static boolean mkfs(){
-    boolean status = fileSystem.format();
-    update();
-    return status;
+    return mounted.format();
+  }
+
+  public static boolean mkfs(int blockSize, int blockCount, int inodeCount, int nameLength,
+      int maxLinks){
+    Geometry geometry;
+    try {
+      geometry = new Geometry(blockSize, blockCount, inodeCount, nameLength, maxLinks);
+    } catch (IllegalArgumentException e) {
+      Log.error(e.getMessage());
+      return false;
+    }
+    close();
+    try {
+      mounted = MountedFileSystem.mkfs(path, geometry);
+      fileSystem = mounted.getFileSystem();
+    } catch (IOException | RuntimeException e) {
+      Log.error("mkfs failed: " + e.getMessage());
+      close();
+    }
+    return mounted != null;
+  }
+
+  public static boolean dump(Path file){
+    return mounted.dump(file);
+  }
+
+  /**
+   * Restores the current image from {@code file}; on failure the image is left as it was and
+   * mounted again if it was mounted before.
+   */
+  public static boolean restore(Path file){
+    boolean wasMounted = mounted != null;
+    close();
+    try {
+      mounted = MountedFileSystem.restore(path, file);
+      fileSystem = mounted.getFileSystem();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      Log.error("restore failed: " + e.getMessage());
+      close();
+    }
+    if (wasMounted) {
+      mount(path);
+    }
+    return false;
   }
 
   public static void mkdir(String path){
-    boolean status = fileSystem.createDirectory(path);
-    update();
-    Log.info("mkdir status: " + status);
+    mounted.mkdir(path);
   }
 
   public static void rmdir(String path){
-    boolean status = fileSystem.removeDirectory(path);
-    update();
-    Log.info("rmdir status: " + status);
+    mounted.rmdir(path);
   }
 
   public static void cd(String path){
-    boolean status = fileSystem.changeDirectory(path);
-    Log.info("cd status: " + status);
+    mounted.cd(path);
   }
 
   public static String ls(){
-    String linksInfo = fileSystem.getLinksInfo();
-    Log.info(linksInfo);
-    return linksInfo;
+    return mounted.ls();
   }
 
   public static boolean create(String name){
-    boolean status = fileSystem.addFile(name);
-    update();
-    return status;
-  }
-
-  private static void update() {
-    if(fileSystem != null) {
-      OsUtils.updateFs(serialize(fileSystem));
-    }
+    return mounted.create(name);
   }
 
-  private static byte[] serialize(FileSystem fileSystem) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    try (ObjectOutputStream os = new ObjectOutputStream(out)) {
-      os.writeObject(fileSystem);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-    return out.toByteArray();
-  }
-
-  private static FileSystem deserialize(byte[] data) {
-    ByteArrayInputStream in = new ByteArrayInputStream(data);
-    try (ObjectInputStream is = new ObjectInputStream(in)) {
-      return (FileSystem) is.readObject();
-    } catch (IOException | ClassNotFoundException e) {
-      e.printStackTrace();
+  private static void close() {
+    fileSystem = null;
+    if (mounted != null) {
+      try {
+        mounted.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      mounted = null;
     }
-    return null;
   }
 }
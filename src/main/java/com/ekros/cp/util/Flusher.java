@@ -0,0 +1,181 @@
+package com.ekros.cp.util;
+
+import com.ekros.cp.storage.DiskImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Write-back mode of a {@link MountedFileSystem}. Operations only change the image in memory and
+ * count themselves dirty; a background thread seals and flushes them every {@code interval} ms,
+ * or as soon as {@code threshold} operations are pending, whichever comes first.
+ *
+ * <p>Sealing the journal transaction waits for operations in flight, so a transaction never holds
+ * half an operation. Forcing it to disk happens afterwards without blocking anyone. Operations
+ * hold the read side of {@code operations}, which is shared with the write-through mode of the
+ * same image.
+ */
+public class Flusher implements Closeable {
+
+  public static final boolean ENABLED = Boolean.getBoolean("fs.writeBack");
+  public static final long INTERVAL = Long.getLong("fs.writeBack.interval", 1000);
+  public static final int THRESHOLD = Integer.getInteger("fs.writeBack.threshold", 1024);
+
+  private final DiskImage image;
+  private final Metrics metrics;
+  private final long interval;
+  private final int threshold;
+  private final ReadWriteLock operations;
+  private final Thread thread;
+  private int dirty;
+  private long requested;
+  private long completed;
+  private long flushes;
+  private IOException failure;
+  private boolean closed;
+
+  public Flusher(DiskImage image, ReadWriteLock operations, Metrics metrics) {
+    this(image, INTERVAL, THRESHOLD, operations, metrics);
+  }
+
+  public Flusher(DiskImage image, long interval, int threshold, ReadWriteLock operations,
+      Metrics metrics) {
+    if (interval <= 0 || threshold <= 0) {
+      throw new IllegalArgumentException(
+          "Interval and threshold must be positive: " + interval + ", " + threshold);
+    }
+    this.image = image;
+    this.operations = operations;
+    this.metrics = metrics;
+    this.interval = interval;
+    this.threshold = threshold;
+    thread = new Thread(this::run, "image-flusher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Runs one mutating operation and marks the image dirty.
+   */
+  public <T> T update(Supplier<T> operation) {
+    operations.readLock().lock();
+    try {
+      return operation.get();
+    } finally {
+      operations.readLock().unlock();
+      synchronized (this) {
+        if (++dirty >= threshold) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Flushes every operation finished so far and waits until it is durable.
+   */
+  public synchronized void sync() throws IOException {
+    long target = ++requested;
+    notifyAll();
+    boolean interrupted = false;
+    while (completed < target && thread.isAlive()) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      IOException e = failure;
+      failure = null;
+      throw e;
+    }
+  }
+
+  public synchronized int getDirty() {
+    return dirty;
+  }
+
+  public synchronized long getFlushes() {
+    return flushes;
+  }
+
+  /**
+   * Flushes what is left and stops the thread.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      sync();
+    } finally {
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void run() {
+    while (true) {
+      long target;
+      synchronized (this) {
+        long start = System.currentTimeMillis();
+        long left = interval;
+        while (dirty < threshold && requested == completed && !closed && left > 0) {
+          try {
+            wait(left);
+          } catch (InterruptedException e) {
+            return;
+          }
+          left = interval - (System.currentTimeMillis() - start);
+        }
+        target = requested;
+      }
+      IOException error = null;
+      try {
+        flush();
+      } catch (IOException | RuntimeException e) {
+        error = e instanceof IOException ? (IOException) e : new IOException(e);
+        Log.error("Flush failed: " + e.getMessage());
+      }
+      synchronized (this) {
+        if (error != null) {
+          failure = error;
+        }
+        completed = target;
+        notifyAll();
+        if (closed) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void flush() throws IOException {
+    long start = System.nanoTime();
+    operations.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (dirty == 0 && requested == completed) {
+          return;
+        }
+        dirty = 0;
+        flushes++;
+      }
+      image.seal();
+    } finally {
+      operations.writeLock().unlock();
+    }
+    image.force();
+    metrics.record(Metrics.PERSIST, start, true);
+  }
+}
@@ -0,0 +1,37 @@
+package com.ekros.cp.util;
+
+import java.nio.ByteBuffer;
+import lombok.AccessLevel;
+import lombok.NoArgsConstructor;
+
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+public class Hex {
+
+  private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+  public static String encode(ByteBuffer src) {
+    char[] chars = new char[src.remaining() * 2];
+    for (int i = 0; i < chars.length; i += 2) {
+      byte b = src.get();
+      chars[i] = DIGITS[(b >> 4) & 0xf];
+      chars[i + 1] = DIGITS[b & 0xf];
+    }
+    return new String(chars);
+  }
+
+  public static byte[] decode(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException(hex + " - odd number of hex digits");
+    }
+    byte[] data = new byte[hex.length() / 2];
+    for (int i = 0; i < data.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high == -1 || low == -1) {
+        throw new IllegalArgumentException(hex + " - is not a hex string");
+      }
+      data[i] = (byte) (high << 4 | low);
+    }
+    return data;
+  }
+}
@@ -0,0 +1,94 @@
+package com.ekros.cp.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with logarithmic buckets, in the style of
+ * HdrHistogram. Values below 32 have a bucket each; above that every power of two is split into
+ * 16 buckets, so a percentile is reported within about 6% of the recorded value.
+ */
+public class Histogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0 : (double) sum.sum() / count;
+  }
+
+  /**
+   * Returns the highest value of the bucket holding the given percentile, in {@code [0, 100]}, or
+   * {@code 0} if nothing was recorded.
+   */
+  public long getPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(highest(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+
+  static int index(long value) {
+    if (value < 2 * SUB_COUNT) {
+      return (int) value;
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return (shift + 1) * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+  }
+
+  static long highest(int index) {
+    if (index < 2 * SUB_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_COUNT - 1;
+    long lowest = (long) (index % SUB_COUNT + SUB_COUNT) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
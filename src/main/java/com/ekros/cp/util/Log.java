@@ -1,12 +1,140 @@
 package com.ekros.cp.util;
 
+import java.io.PrintStream;
+import java.util.function.Supplier;
+
+/**
+ * Console logger. Messages below the current level are dropped before they are built when passed
+ * as a {@link Supplier}. File contents go through {@link #payload(Supplier)}, which quiet mode
+ * drops entirely. Set {@code fs.log.level}, {@code fs.log.quiet} and {@code fs.log.async} to pick
+ * the defaults; the async appender hands messages to a background thread instead of writing them
+ * on the caller's.
+ */
 public class Log {
+
+  public enum Level {
+    DEBUG, INFO, ERROR, OFF
+  }
+
+  /**
+   * Destination of the messages that passed the level check.
+   */
+  public interface Appender {
+
+    void append(Level level, String message);
+
+    /**
+     * Waits until every message appended so far is written.
+     */
+    default void flush() {
+    }
+  }
+
+  public static final Appender CONSOLE = Log::write;
+
+  private static volatile Level level = parseLevel(System.getProperty("fs.log.level"));
+  private static volatile boolean quiet = Boolean.getBoolean("fs.log.quiet");
+  private static volatile Appender appender = Boolean.getBoolean("fs.log.async")
+      ? new AsyncAppender(CONSOLE) : CONSOLE;
+
+  private Log(){}
+
+  public static void debug(Supplier<String> message){
+    log(Level.DEBUG, message);
+  }
+
   public static void info(String message){
-    System.out.println("[INFO] " + message);
+    log(Level.INFO, message);
+  }
+
+  public static void info(Supplier<String> message){
+    log(Level.INFO, message);
   }
 
   public static void error(String message){
-    System.err.println("[ERROR] " + message);
+    log(Level.ERROR, message);
+  }
+
+  public static void error(Supplier<String> message){
+    log(Level.ERROR, message);
+  }
+
+  /**
+   * Logs data read from a file at {@link Level#INFO}, unless in quiet mode.
+   */
+  public static void payload(Supplier<String> data){
+    if (!quiet) {
+      log(Level.INFO, data);
+    }
+  }
+
+  public static boolean isEnabled(Level level){
+    return level != Level.OFF && level.compareTo(Log.level) >= 0;
   }
 
+  public static Level getLevel(){
+    return level;
+  }
+
+  public static void setLevel(Level level){
+    Log.level = level;
+  }
+
+  public static boolean isQuiet(){
+    return quiet;
+  }
+
+  public static void setQuiet(boolean quiet){
+    Log.quiet = quiet;
+  }
+
+  public static Appender getAppender(){
+    return appender;
+  }
+
+  /**
+   * Replaces the appender, flushing the previous one first.
+   */
+  public static void setAppender(Appender appender){
+    Appender previous = Log.appender;
+    Log.appender = appender;
+    previous.flush();
+  }
+
+  public static void flush(){
+    appender.flush();
+  }
+
+  private static void log(Level level, String message){
+    if (isEnabled(level)) {
+      appender.append(level, message);
+    }
+  }
+
+  private static void log(Level level, Supplier<String> message){
+    if (isEnabled(level)) {
+      appender.append(level, message.get());
+    }
+  }
+
+  /**
+   * Reads a level name in any case, falling back to {@link Level#INFO} when it is missing or
+   * unknown so a bad property cannot break class initialization.
+   */
+  static Level parseLevel(String name){
+    if (name == null) {
+      return Level.INFO;
+    }
+    try {
+      return Level.valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      write(Level.ERROR, "Unknown log level " + name + ", using " + Level.INFO);
+      return Level.INFO;
+    }
+  }
+
+  private static void write(Level level, String message){
+    PrintStream stream = level == Level.ERROR ? System.err : System.out;
+    stream.println("[" + level + "] " + message);
+  }
 }
@@ -0,0 +1,245 @@
+package com.ekros.cp.util;
+
+import com.ekros.cp.model.BlockAllocator;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one mounted image: per operation count, errors and latency histogram, bytes read
+ * and written, blocks allocated and freed, and the time spent persisting. Path operations are
+ * also charged to their path, for the first {@link #MAX_PATHS} distinct paths seen.
+ */
+public class Metrics implements MetricsMBean {
+
+  public static final String PERSIST = "persist";
+  public static final int MAX_PATHS = 1024;
+
+  private static final int HOT_PATHS = 10;
+
+  private final BlockAllocator allocator;
+  private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+  private final Map<String, Operation> paths = new ConcurrentHashMap<>();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private ObjectName name;
+
+  public Metrics(BlockAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  /**
+   * Records one operation that started at {@code start}, a {@link System#nanoTime()} reading.
+   */
+  public void record(String operation, long start, boolean success) {
+    operations.computeIfAbsent(operation, k -> new Operation())
+        .record(System.nanoTime() - start, success);
+  }
+
+  public void record(String operation, String path, long start, boolean success) {
+    long elapsed = System.nanoTime() - start;
+    operations.computeIfAbsent(operation, k -> new Operation()).record(elapsed, success);
+    if (path == null) {
+      return;
+    }
+    Operation stats = paths.get(path);
+    if (stats == null && paths.size() < MAX_PATHS) {
+      stats = paths.computeIfAbsent(path, k -> new Operation());
+    }
+    if (stats != null) {
+      stats.record(elapsed, success);
+    }
+  }
+
+  public void read(int bytes) {
+    if (bytes > 0) {
+      bytesRead.add(bytes);
+    }
+  }
+
+  public void written(int bytes) {
+    if (bytes > 0) {
+      bytesWritten.add(bytes);
+    }
+  }
+
+  public Histogram getLatency(String operation) {
+    Operation stats = operations.get(operation);
+    return stats == null ? null : stats.latency;
+  }
+
+  @Override
+  public long getOperations() {
+    long count = 0;
+    for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+      if (!entry.getKey().equals(PERSIST)) {
+        count += entry.getValue().latency.getCount();
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public long getErrors() {
+    long count = 0;
+    for (Operation stats : operations.values()) {
+      count += stats.errors.sum();
+    }
+    return count;
+  }
+
+  @Override
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  @Override
+  public long getBlocksAllocated() {
+    synchronized (allocator) {
+      return allocator.getAllocated();
+    }
+  }
+
+  @Override
+  public long getBlocksFreed() {
+    synchronized (allocator) {
+      return allocator.getFreed();
+    }
+  }
+
+  @Override
+  public long getPersistCount() {
+    Histogram latency = getLatency(PERSIST);
+    return latency == null ? 0 : latency.getCount();
+  }
+
+  @Override
+  public long getPersistP99Micros() {
+    Histogram latency = getLatency(PERSIST);
+    return latency == null ? 0 : micros(latency.getPercentile(99));
+  }
+
+  @Override
+  public String[] getOperationStats() {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Operation> entry : new TreeMap<>(operations).entrySet()) {
+      lines.add(format(entry.getKey(), entry.getValue()));
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  @Override
+  public String[] getHotPaths() {
+    List<Map.Entry<String, Operation>> entries = new ArrayList<>(paths.entrySet());
+    entries.sort(Comparator.comparingLong(
+        (Map.Entry<String, Operation> entry) -> entry.getValue().total.sum()).reversed());
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Operation> entry : entries.subList(0,
+        Math.min(HOT_PATHS, entries.size()))) {
+      Operation stats = entry.getValue();
+      lines.add(String.format("%-24s count=%d errors=%d total=%dus", entry.getKey(),
+          stats.latency.getCount(), stats.errors.sum(), micros(stats.total.sum())));
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder sb = new StringBuilder("\n");
+    sb.append(String.format("%-10s %8s %6s %9s %9s %9s %9s%n", "operation", "count", "errors",
+        "p50(us)", "p90(us)", "p99(us)", "max(us)"));
+    for (String line : getOperationStats()) {
+      sb.append(line).append('\n');
+    }
+    sb.append("bytes read=").append(getBytesRead()).append(" written=").append(getBytesWritten())
+        .append('\n');
+    sb.append("blocks allocated=").append(getBlocksAllocated()).append(" freed=")
+        .append(getBlocksFreed()).append('\n');
+    String[] hotPaths = getHotPaths();
+    if (hotPaths.length > 0) {
+      sb.append("hot paths:\n");
+      for (String line : hotPaths) {
+        sb.append("  ").append(line).append('\n');
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public void reset() {
+    operations.clear();
+    paths.clear();
+    bytesRead.reset();
+    bytesWritten.reset();
+  }
+
+  /**
+   * Registers this as an MBean named {@code com.ekros.cp:type=Metrics,image=<image>}.
+   */
+  public synchronized void register(String image) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "com.ekros.cp:type=Metrics,image=" + ObjectName.quote(image));
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+      server.registerMBean(this, name);
+      this.name = name;
+    } catch (JMException e) {
+      Log.error("Metrics MBean not registered: " + e.getMessage());
+    }
+  }
+
+  public synchronized void unregister() {
+    if (name == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      Log.error("Metrics MBean not unregistered: " + e.getMessage());
+    }
+    name = null;
+  }
+
+  private static String format(String operation, Operation stats) {
+    Histogram latency = stats.latency;
+    return String.format("%-10s %8d %6d %9d %9d %9d %9d", operation, latency.getCount(),
+        stats.errors.sum(), micros(latency.getPercentile(50)), micros(latency.getPercentile(90)),
+        micros(latency.getPercentile(99)), micros(latency.getMax()));
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  private static class Operation {
+
+    private final Histogram latency = new Histogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder total = new LongAdder();
+
+    void record(long elapsed, boolean success) {
+      latency.record(elapsed);
+      total.add(elapsed);
+      if (!success) {
+        errors.increment();
+      }
+    }
+  }
+}
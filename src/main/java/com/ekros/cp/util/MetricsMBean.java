@@ -0,0 +1,37 @@
+package com.ekros.cp.util;
+
+/**
+ * JMX view of {@link Metrics}. Latencies are in microseconds.
+ */
+public interface MetricsMBean {
+
+  long getOperations();
+
+  long getErrors();
+
+  long getBytesRead();
+
+  long getBytesWritten();
+
+  long getBlocksAllocated();
+
+  long getBlocksFreed();
+
+  long getPersistCount();
+
+  long getPersistP99Micros();
+
+  /**
+   * One line per operation: count, errors and latency percentiles.
+   */
+  String[] getOperationStats();
+
+  /**
+   * Paths with the most time spent in operations on them, slowest first.
+   */
+  String[] getHotPaths();
+
+  String getReport();
+
+  void reset();
+}
@@ -0,0 +1,80 @@
+package com.ekros.cp.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named set of mounted images. An image can only be mounted once, since two instances over the
+ * same file would overwrite each other's metadata.
+ */
+public class MountTable implements Closeable {
+
+  private final Map<String, MountedFileSystem> mounts = new ConcurrentHashMap<>();
+
+  /**
+   * Mounts the image at {@code path} under {@code name}. Fails with
+   * {@link IllegalStateException} if the name is taken or the image is already mounted.
+   */
+  public synchronized MountedFileSystem mount(String name, Path path) throws IOException {
+    if (mounts.containsKey(name)) {
+      throw new IllegalStateException("Mount point [" + name + "] is busy.");
+    }
+    Path image = path.toAbsolutePath().normalize();
+    for (MountedFileSystem mounted : mounts.values()) {
+      if (mounted.getPath().equals(image)) {
+        throw new IllegalStateException("Image [" + path + "] is already mounted.");
+      }
+    }
+    MountedFileSystem mounted = MountedFileSystem.mount(image);
+    mounts.put(name, mounted);
+    return mounted;
+  }
+
+  /**
+   * Returns the image mounted under {@code name}, or {@code null}.
+   */
+  public MountedFileSystem get(String name) {
+    return mounts.get(name);
+  }
+
+  public synchronized boolean unmount(String name) throws IOException {
+    MountedFileSystem mounted = mounts.remove(name);
+    if (mounted == null) {
+      return false;
+    }
+    mounted.unmount();
+    return true;
+  }
+
+  public Set<String> names() {
+    return new TreeSet<>(mounts.keySet());
+  }
+
+  public int size() {
+    return mounts.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    IOException failure = null;
+    for (String name : names()) {
+      try {
+        unmount(name);
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,447 @@
+package com.ekros.cp.util;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.DiskImage;
+import com.ekros.cp.storage.ImageCodec;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * A disk image at {@code path} mounted together with its journal at {@code path.journal}. Every
+ * instance owns its image, so one process can drive any number of them at the same time.
+ */
+@Getter
+public class MountedFileSystem implements Closeable {
+
+  public static final boolean PREFETCH = Boolean.getBoolean("fs.prefetch");
+
+  private final Path path;
+  private final DiskImage image;
+  private final FileSystem fileSystem;
+  private final Metrics metrics;
+  @Getter(AccessLevel.NONE)
+  private final ReadWriteLock operations = new ReentrantReadWriteLock();
+  private volatile Flusher flusher;
+  private volatile Thread prefetcher;
+  private volatile boolean closing;
+
+  private MountedFileSystem(Path path, DiskImage image) {
+    this.path = path;
+    this.image = image;
+    this.fileSystem = image.mount();
+    this.metrics = new Metrics(fileSystem.getAllocator());
+    metrics.register(path.toString());
+    if (Flusher.ENABLED) {
+      flusher = new Flusher(image, operations, metrics);
+    }
+    if (PREFETCH) {
+      prefetch();
+    }
+  }
+
+  /**
+   * Mounts the image at {@code path}, creating one with the default geometry if it does not
+   * exist yet.
+   */
+  public static MountedFileSystem mount(Path path) throws IOException {
+    return open(path, null);
+  }
+
+  /**
+   * Replaces whatever is at {@code path} with a fresh image of the given geometry and mounts it.
+   */
+  public static MountedFileSystem mkfs(Path path, Geometry geometry) throws IOException {
+    OsUtils.clear(path);
+    return open(path, geometry);
+  }
+
+  /**
+   * Replaces whatever is at {@code path} with the contents of the dump {@code file} and mounts it.
+   * The dump is restored and verified next to the image first and only then moved over it, so a
+   * missing or corrupt dump leaves the existing image as it was. The image must not be mounted.
+   */
+  public static MountedFileSystem restore(Path path, Path file) throws IOException {
+    Path restored = path.resolveSibling(path.getFileName() + ".restore");
+    Files.deleteIfExists(restored);
+    try (InputStream in = Files.newInputStream(file);
+        FileChannel channel = OsUtils.openChannel(restored)) {
+      ImageCodec.restore(in, channel).close();
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(restored);
+      throw e;
+    }
+    // A cleanly closed image has nothing left in its journal, and replaying it onto the restored
+    // image would corrupt it, so the journal goes before the image is swapped in.
+    Files.deleteIfExists(OsUtils.journalPath(path));
+    Files.move(restored, path, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    return mount(path);
+  }
+
+  private static MountedFileSystem open(Path path, Geometry geometry) throws IOException {
+    FileChannel channel = OsUtils.openChannel(path);
+    FileChannel journal = null;
+    try {
+      journal = OsUtils.openChannel(OsUtils.journalPath(path));
+      DiskImage image = geometry == null ? DiskImage.open(channel, journal)
+          : DiskImage.create(channel, journal, geometry);
+      return new MountedFileSystem(path, image);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      if (journal != null) {
+        journal.close();
+      }
+      throw e;
+    }
+  }
+
+  public int open(String name){
+    long start = System.nanoTime();
+    int fd = fileSystem.openFile(name);
+    metrics.record("open", name, start, fd != -1);
+    if(fd == -1){
+      Log.error("No such file [" + name + "].");
+    }else{
+      Log.debug(() -> "File [" + name + "] open with fd " + fd);
+    }
+    return fd;
+  }
+
+  public boolean close(int fd) {
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.closeFile(fd));
+    metrics.record("close", start, status);
+    if(status){
+      Log.debug(() -> "File with fd [" + fd + "] closed.");
+    }else{
+      Log.error("File with fd [" + fd + "] not found.");
+    }
+    return status;
+  }
+
+  public String read(int fd, int offset, int size){
+    long start = System.nanoTime();
+    String data = fileSystem.read(fd, offset, size);
+    metrics.record("read", start, !data.isEmpty() || size == 0);
+    metrics.read(data.length());
+    Log.payload(() -> data);
+    return data;
+  }
+
+  public boolean write(int fd, int offset, int size){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.write(fd, offset, size));
+    metrics.record("write", start, status);
+    metrics.written(status ? size : 0);
+    if(status){
+      Log.info(() -> "Write status: " + true);
+    }else{
+      Log.error("Write status: " + false);
+    }
+    return status;
+  }
+
+  public int read(int fd, long offset, ByteBuffer dst){
+    long start = System.nanoTime();
+    int count = fileSystem.read(fd, offset, dst);
+    metrics.record("read", start, count != -1);
+    metrics.read(count);
+    if(count != -1){
+      Log.info(() -> "Read " + count + " bytes.");
+    }
+    return count;
+  }
+
+  public int write(int fd, long offset, ByteBuffer src){
+    long start = System.nanoTime();
+    int count = update(() -> fileSystem.write(fd, offset, src));
+    metrics.record("write", start, count != -1);
+    metrics.written(count);
+    if(count != -1){
+      Log.info(() -> "Wrote " + count + " bytes.");
+    }
+    return count;
+  }
+
+  public boolean truncate(String name, int size){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.truncate(name, size));
+    metrics.record("truncate", name, start, status);
+    if(status){
+      Log.info(() -> "Truncated [" + name + "] to " + size + " size.");
+    }else{
+      Log.error("Truncate failed.");
+    }
+    return status;
+  }
+
+  public boolean link(String name1, String name2){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.link(name1, name2));
+    metrics.record("link", name2, start, status);
+    if(status){
+      Log.info(() -> "Link [" + name1 + "] added.");
+    }else{
+      Log.error("Link [" + name2 + "] not found.");
+    }
+    return status;
+  }
+
+  public boolean unlink(String name){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.unlink(name));
+    metrics.record("unlink", name, start, status);
+    if(status){
+      Log.info(() -> "Link [" + name + "] removed.");
+    }else{
+      Log.error("Link [" + name + "] not found.");
+    }
+    return status;
+  }
+
+  public String fstat(int id){
+    String stat = fileSystem.stat(id);
+    return stat == null ? "Descriptor " + id + " not found." : stat;
+  }
+
+  public boolean symlink(String str, String path){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.createSymlink(str, path));
+    metrics.record("symlink", path, start, status);
+    Log.info(() -> "symlink status: " + status);
+    return status;
+  }
+
+  public boolean format(){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.format());
+    metrics.record("format", start, status);
+    return status;
+  }
+
+  public boolean mkdir(String path){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.createDirectory(path));
+    metrics.record("mkdir", path, start, status);
+    Log.info(() -> "mkdir status: " + status);
+    return status;
+  }
+
+  public boolean rmdir(String path){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.removeDirectory(path));
+    metrics.record("rmdir", path, start, status);
+    Log.info(() -> "rmdir status: " + status);
+    return status;
+  }
+
+  public boolean cd(String path){
+    long start = System.nanoTime();
+    boolean status = fileSystem.changeDirectory(path);
+    metrics.record("cd", path, start, status);
+    Log.info(() -> "cd status: " + status);
+    return status;
+  }
+
+  public String ls(){
+    String linksInfo = fileSystem.getLinksInfo();
+    Log.info(linksInfo);
+    return linksInfo;
+  }
+
+  public boolean create(String name){
+    long start = System.nanoTime();
+    boolean status = update(() -> fileSystem.addFile(name));
+    metrics.record("create", name, start, status);
+    return status;
+  }
+
+  /**
+   * Starts reading the whole directory tree in the background. The image is mounted lazily, so
+   * without this every directory is read on its first lookup instead.
+   */
+  public synchronized void prefetch() {
+    if (prefetcher != null && prefetcher.isAlive()) {
+      return;
+    }
+    prefetcher = new Thread(() -> {
+      long start = System.nanoTime();
+      int count = fileSystem.prefetch(() -> closing);
+      metrics.record("prefetch", start, true);
+      Log.debug(() -> "Prefetched " + count + " directories in "
+          + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }, "prefetch");
+    prefetcher.setDaemon(true);
+    prefetcher.start();
+  }
+
+  /**
+   * Switches to write-back mode: operations return without persisting anything, and a background
+   * thread flushes them every {@code interval} ms or once {@code threshold} are pending.
+   */
+  public synchronized void writeBack(long interval, int threshold) throws IOException {
+    writeThrough();
+    flusher = new Flusher(image, interval, threshold, operations, metrics);
+  }
+
+  /**
+   * Leaves write-back mode after flushing everything pending.
+   */
+  public synchronized void writeThrough() throws IOException {
+    Flusher flusher = this.flusher;
+    if (flusher != null) {
+      this.flusher = null;
+      flusher.close();
+    }
+  }
+
+  public boolean isWriteBack() {
+    return flusher != null;
+  }
+
+  /**
+   * Writes all dirty blocks and the pending metadata to the image, waiting for the flusher in
+   * write-back mode.
+   */
+  public boolean sync() {
+    try {
+      Flusher flusher = this.flusher;
+      if (flusher != null) {
+        flusher.sync();
+      } else {
+        long start = System.nanoTime();
+        operations.writeLock().lock();
+        try {
+          image.seal();
+        } finally {
+          operations.writeLock().unlock();
+        }
+        image.force();
+        metrics.record(Metrics.PERSIST, start, true);
+      }
+      return true;
+    } catch (IOException e) {
+      Log.error("sync failed: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Writes the dirty blocks of {@code fd} in block order, then flushes the image. The journal
+   * still forces the other dirty blocks before the metadata that may point at them.
+   */
+  public boolean fsync(int fd) {
+    if (!fileSystem.sync(fd)) {
+      Log.error("File with fd [" + fd + "] not found.");
+      return false;
+    }
+    return sync();
+  }
+
+  /**
+   * Writes the whole file system to {@code file} in the {@link ImageCodec} format. Operations
+   * wait until the dump is done.
+   */
+  public boolean dump(Path file) {
+    long start = System.nanoTime();
+    try (OutputStream out = Files.newOutputStream(file)) {
+      ImageCodec.dump(fileSystem, out);
+      metrics.record("dump", start, true);
+      Log.info(() -> "Dumped to [" + file + "].");
+      return true;
+    } catch (IOException e) {
+      metrics.record("dump", start, false);
+      Log.error("dump failed: " + e.getMessage());
+      return false;
+    }
+  }
+
+  public String stats() {
+    String report = metrics.getReport() + image.getDevice() + "\n";
+    Log.info(report);
+    return report;
+  }
+
+  public String cache() {
+    String stats = image.getDevice().toString();
+    Log.info(stats);
+    return stats;
+  }
+
+  /**
+   * Closes every open file and the image.
+   */
+  public void unmount() throws IOException {
+    update(() -> {
+      fileSystem.closeAll();
+      return null;
+    });
+    close();
+  }
+
+  /**
+   * Closes the image, waiting for the flusher to persist everything first.
+   */
+  @Override
+  public void close() throws IOException {
+    closing = true;
+    Thread prefetcher = this.prefetcher;
+    if (prefetcher != null) {
+      try {
+        prefetcher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      writeThrough();
+    } finally {
+      metrics.unregister();
+      image.close();
+    }
+  }
+
+  /**
+   * Runs one mutating operation. In write-back mode the flusher persists it later, otherwise it
+   * is committed right away. Operations run in parallel, but a commit waits until none is in
+   * flight, so a transaction never holds half of one.
+   */
+  private <T> T update(Supplier<T> operation) {
+    Flusher flusher = this.flusher;
+    if (flusher != null) {
+      return flusher.update(operation);
+    }
+    T result;
+    operations.readLock().lock();
+    try {
+      result = operation.get();
+    } finally {
+      operations.readLock().unlock();
+    }
+    long start = System.nanoTime();
+    operations.writeLock().lock();
+    try {
+      image.commit();
+      metrics.record(Metrics.PERSIST, start, true);
+    } catch (IOException e) {
+      metrics.record(Metrics.PERSIST, start, false);
+      e.printStackTrace();
+    } finally {
+      operations.writeLock().unlock();
+    }
+    return result;
+  }
+}
@@ -1,60 +1,63 @@
 package com.ekros.cp.util;
 
-import com.ekros.cp.model.FileSystem;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 public class OsUtils {
 
-  private static final String path = System.getProperty("user.dir") + "/filesystem";
+  private static final Path path = Path.of(
+      System.getProperty("fs.image", System.getProperty("user.dir") + "/filesystem"));
 
   private OsUtils(){}
 
-  public static byte[] readFs(){
-      if(Files.notExists(Path.of(path))){
-        createFs();
-      }
-      try (FileInputStream is = new FileInputStream(path)) {
-        return is.readAllBytes();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+  /**
+   * Image used when no path is given, {@code fs.image} or {@code filesystem} in the working
+   * directory.
+   */
+  public static Path getPath(){
+    return path;
+  }
 
-    return new byte[0];
+  public static Path journalPath(Path image){
+    return image.resolveSibling(image.getFileName() + ".journal");
   }
 
-  public static void updateFs(byte[] fs){
-    try (FileOutputStream fos = new FileOutputStream(path)) {
-      fos.write(fs);
-      fos.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  public static FileChannel openFs(){
+    return open(path);
+  }
+
+  public static FileChannel openJournal(){
+    return open(journalPath(path));
+  }
+
+  public static boolean clear() {
+    return clear(path);
   }
 
-  private static void createFs(){
-    FileSystem fileSystem = new FileSystem();
+  public static boolean clear(Path image) {
     try {
-      Files.createFile(Path.of(path));
-      ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path));
-      oos.writeObject(fileSystem);
-      oos.flush();
-      oos.close();
+      Files.deleteIfExists(journalPath(image));
+      return Files.deleteIfExists(image);
     } catch (IOException e) {
       e.printStackTrace();
+      return false;
     }
   }
 
-  public static boolean clear() {
+  public static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  private static FileChannel open(Path path){
     try {
-      return Files.deleteIfExists(Path.of(path));
+      return openChannel(path);
     } catch (IOException e) {
       e.printStackTrace();
-      return false;
     }
+    return null;
   }
 }
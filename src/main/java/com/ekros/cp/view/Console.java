@@ -1,7 +1,17 @@
 package com.ekros.cp.view;
 
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.util.Hex;
 import com.ekros.cp.util.Log;
 import com.ekros.cp.util.FSUtils;
+import com.ekros.cp.util.Flusher;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -9,10 +19,38 @@ import lombok.Getter;
 
 public class Console {
 
+  /**
+   * Pending operations after which a batch run persists anyway, so a long script does not grow
+   * one journal transaction without bound.
+   */
+  static final int BATCH_THRESHOLD = Integer.getInteger("fs.batch.threshold",
+      16 * Flusher.THRESHOLD);
+
   private static boolean isWork = true;
 
-  public static void main(String[] args) {
-    start();
+  /**
+   * {@code [--quiet] [--script file]}: {@code --quiet} drops file contents from the log, and
+   * {@code --script -} reads the script from standard input.
+   */
+  public static void main(String[] args) throws IOException {
+    String script = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--quiet")) {
+        Log.setQuiet(true);
+      } else if (args[i].equals("--script") && i + 1 < args.length) {
+        script = args[++i];
+      }
+    }
+    if ("-".equals(script)) {
+      batch(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+    } else if (script != null) {
+      try (BufferedReader reader = Files.newBufferedReader(Path.of(script))) {
+        batch(reader);
+      }
+    } else {
+      start();
+    }
+    Log.flush();
   }
 
   private static void start() {
@@ -23,6 +61,48 @@ public class Console {
     }
   }
 
+  /**
+   * Runs a whole script, one command per line; blank lines and lines starting with {@code #} are
+   * skipped. The mounted image is kept in write-back mode, so changes are persisted at
+   * {@code sync} commands, every {@link #BATCH_THRESHOLD} operations and once at the end. Returns
+   * the number of commands run.
+   */
+  static int batch(BufferedReader reader) throws IOException {
+    List<Command> commands = new ArrayList<>();
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      Command command = new Command(line);
+      if (!command.getCommand().isEmpty() && !command.getCommand().startsWith("#")) {
+        commands.add(command);
+      }
+    }
+    long start = System.nanoTime();
+    int count = 0;
+    deferPersistence();
+    for (Command command : commands) {
+      if (!isWork) {
+        break;
+      }
+      checkCommand(command);
+      count++;
+      if (command.getCommand().equals("mount") || command.getCommand().equals("mkfs")
+          || command.getCommand().equals("restore")) {
+        deferPersistence();
+      }
+    }
+    if (FSUtils.isMounted()) {
+      FSUtils.sync();
+    }
+    long elapsed = Math.max(1, System.nanoTime() - start);
+    Log.info(String.format("%d commands in %d ms, %.0f ops/sec", count, elapsed / 1_000_000,
+        count * 1e9 / elapsed));
+    return count;
+  }
+
+  private static void deferPersistence() {
+    if (FSUtils.isMounted() && !FSUtils.isWriteBack()) {
+      FSUtils.writeBack(Long.MAX_VALUE, BATCH_THRESHOLD);
+    }
+  }
 
   private static void checkCommand(Command command) {
     try {
@@ -43,13 +123,14 @@ public class Console {
           FSUtils.cd(command.next());
           break;
         case "mount":
-          Log.info("Mount status: " + FSUtils.mount());
+          Log.info("Mount status: "
+              + (command.hasNext() ? FSUtils.mount(Path.of(command.next())) : FSUtils.mount()));
           break;
         case "unmount":
           Log.info("Unmount status: " + FSUtils.unmount());
           break;
         case "fstat":
-          FSUtils.fstat(toInt(command.next()));
+          Log.info(FSUtils.fstat(toInt(command.next())));
           break;
         case "ls":
           FSUtils.ls();
@@ -58,14 +139,24 @@ public class Console {
           Log.info("Create status: " + FSUtils.create(command.next()));
           break;
         case "open":
-          Log.info("Open status: " + FSUtils.open(command.next()));
+          String name = command.next();
+          int fd = FSUtils.open(name);
+          if (fd != -1) {
+            Log.info("File [" + name + "] open with fd " + fd);
+          }
           break;
         case "close":
           FSUtils.close(toInt(command.next()));
           break;
         case "mkfs":
-          FSUtils.mkfs();
-          Log.info("Formatted.");
+          if (command.hasNext()) {
+            Log.info("mkfs status: " + FSUtils.mkfs(toInt(command.next()), toInt(command.next()),
+                toInt(command.next()), toInt(command.next()),
+                command.hasNext() ? toInt(command.next()) : Geometry.DEFAULT.getMaxLinks()));
+          } else {
+            FSUtils.mkfs();
+            Log.info("Formatted.");
+          }
           break;
         case "link":
           FSUtils.link(command.next(), command.next());
@@ -79,9 +170,52 @@ public class Console {
         case "write":
           FSUtils.write(toInt(command.next()), toInt(command.next()), toInt(command.next()));
           break;
+        case "pread":
+          pread(toInt(command.next()), toInt(command.next()), toInt(command.next()),
+              command.hasNext() ? command.next() : "hex");
+          break;
+        case "pwrite":
+          pwrite(toInt(command.next()), toInt(command.next()), command.rest());
+          break;
         case "truncate":
           FSUtils.truncate(command.next(), toInt(command.next()));
           break;
+        case "sync":
+          Log.info("sync status: " + FSUtils.sync());
+          break;
+        case "fsync":
+          Log.info("fsync status: " + FSUtils.fsync(toInt(command.next())));
+          break;
+        case "writeback":
+          if ("off".equals(command.next())) {
+            Log.info("writeback status: " + FSUtils.writeThrough());
+          } else {
+            Log.info("writeback status: " + FSUtils.writeBack(
+                command.hasNext() ? toInt(command.next()) : Flusher.INTERVAL,
+                command.hasNext() ? toInt(command.next()) : Flusher.THRESHOLD));
+          }
+          break;
+        case "log":
+          Log.setLevel(Log.Level.valueOf(command.next().toUpperCase()));
+          break;
+        case "quiet":
+          Log.setQuiet(!command.hasNext() || command.next().equals("on"));
+          break;
+        case "dump":
+          Log.info("dump status: " + FSUtils.dump(Path.of(command.next())));
+          break;
+        case "restore":
+          Log.info("restore status: " + FSUtils.restore(Path.of(command.next())));
+          break;
+        case "prefetch":
+          FSUtils.prefetch();
+          break;
+        case "stats":
+          FSUtils.stats();
+          break;
+        case "cache":
+          FSUtils.cache();
+          break;
         case "clear":
           Log.info("Clear status: " + FSUtils.clear());
           break;
@@ -94,6 +228,24 @@ public class Console {
     }
   }
 
+  private static void pread(int fd, int offset, int size, String format) {
+    ByteBuffer dst = ByteBuffer.allocate(Math.max(size, 0));
+    if (FSUtils.read(fd, offset, dst) != -1) {
+      dst.flip();
+      Log.payload(() -> format.equals("text") ? StandardCharsets.UTF_8.decode(dst).toString()
+          : Hex.encode(dst));
+    }
+  }
+
+  /**
+   * Payloads starting with {@code 0x} are hex, anything else is written as UTF-8 text.
+   */
+  private static void pwrite(int fd, int offset, String payload) {
+    byte[] data = payload.startsWith("0x") ? Hex.decode(payload.substring(2))
+        : payload.getBytes(StandardCharsets.UTF_8);
+    FSUtils.write(fd, offset, ByteBuffer.wrap(data));
+  }
+
   private static int toInt(String str) {
     try {
       return Integer.parseInt(str);
@@ -122,6 +274,16 @@ public class Console {
       return args.get(index++);
     }
 
+    public String rest(){
+      String rest = String.join(" ", args.subList(index, args.size()));
+      index = args.size();
+      return rest;
+    }
+
+    public boolean hasNext(){
+      return index < args.size();
+    }
+
     private void init(String command) {
       command = command.trim();
       if (command.isEmpty()) {
@@ -0,0 +1,51 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class BlockAllocatorTest {
+
+  @Test
+  public void testAllocateAndFree() {
+    BlockAllocator allocator = new BlockAllocator(130);
+    for (int i = 0; i < 130; i++) {
+      assertEquals(i, allocator.allocate());
+    }
+    assertEquals(-1, allocator.allocate());
+    allocator.free(70);
+    allocator.free(3);
+    assertEquals(2, allocator.getFreeCount());
+    assertEquals(3, allocator.allocate());
+    assertEquals(70, allocator.allocate());
+    assertEquals(0, allocator.getFreeCount());
+  }
+
+  @Test
+  public void testDoubleFree() {
+    BlockAllocator allocator = new BlockAllocator(10);
+    int id = allocator.allocate();
+    allocator.free(id);
+    allocator.free(id);
+    assertEquals(10, allocator.getFreeCount());
+    assertFalse(allocator.isUsed(id));
+  }
+
+  @Test
+  public void testAllocateRun() {
+    BlockAllocator allocator = new BlockAllocator(200);
+    for (int i = 0; i < 100; i++) {
+      allocator.allocate();
+    }
+    allocator.free(10);
+    allocator.free(60, 5);
+    assertEquals(60, allocator.allocateRun(5));
+    assertEquals(100, allocator.allocateRun(64));
+    assertTrue(allocator.isUsed(163));
+    assertFalse(allocator.isUsed(164));
+    assertEquals(-1, allocator.allocateRun(37));
+    assertEquals(164, allocator.allocateRun(36));
+    assertEquals(10, allocator.allocate());
+    assertEquals(-1, allocator.allocateRun(1));
+  }
+}
@@ -0,0 +1,39 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DentryCacheTest {
+
+  @Test
+  public void testLruEviction() {
+    DentryCache cache = new DentryCache(2);
+    Descriptor a = new Descriptor(true, false, null, 0, null, null);
+    Descriptor b = new Descriptor(true, false, null, 0, null, null);
+    cache.put("a", a);
+    cache.put("b", b);
+    assertSame(a, cache.get("a"));
+    cache.put("c", a);
+    assertNull(cache.get("b"));
+    assertSame(a, cache.get("a"));
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testNegativeEntries() {
+    DentryCache cache = new DentryCache(4);
+    Descriptor a = new Descriptor(true, false, null, 0, null, null);
+    cache.put("a", a);
+    cache.put("x", null);
+    assertSame(DentryCache.MISSING, cache.get("x"));
+    cache.added();
+    assertNull(cache.get("x"));
+    assertSame(a, cache.get("a"));
+    cache.put("x", null);
+    cache.removed();
+    assertNull(cache.get("a"));
+    assertSame(DentryCache.MISSING, cache.get("x"));
+  }
+}
@@ -8,10 +8,11 @@ class DescriptorTest {
 
   @Test
   public void testSetSize(){
-    Descriptor descriptor = new Descriptor(false, false, 0, Block.MAX_BLOCK_SIZE, null, null);
-    assertEquals(Block.MAX_BLOCK_SIZE, descriptor.getSize());
-    descriptor.setSize(Block.MAX_BLOCK_SIZE*5-13);
-    assertEquals(Block.MAX_BLOCK_SIZE*4, descriptor.getSize());
+    Descriptor descriptor = new Descriptor(false, false, 0, FileSystem.MAX_BLOCK_SIZE, null, null);
+    assertEquals(FileSystem.MAX_BLOCK_SIZE, descriptor.getSize());
+    descriptor.setSize(Descriptor.formatSize(FileSystem.MAX_BLOCK_SIZE*5-13, FileSystem.MAX_BLOCK_SIZE));
+    assertEquals(FileSystem.MAX_BLOCK_SIZE*4, descriptor.getSize());
+    assertEquals(64, new Geometry(32, 4, 1, 1, 1).formatSize(33));
   }
 
 }
\ No newline at end of file
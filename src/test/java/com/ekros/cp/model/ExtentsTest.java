@@ -0,0 +1,51 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ExtentsTest {
+
+  @Test
+  public void testMergeContiguousRuns() {
+    Extents extents = new Extents();
+    assertEquals(0, extents.append(100, 4));
+    assertEquals(0, extents.append(104, 2));
+    assertEquals(1, extents.append(7, 1));
+    assertEquals(2, extents.size());
+    assertEquals(7, extents.getBlockCount());
+    assertEquals(105, extents.get(5));
+    assertEquals(7, extents.get(6));
+    assertEquals(-1, extents.get(7));
+  }
+
+  @Test
+  public void testAddIntoGap() {
+    Extents extents = new Extents();
+    extents.add(0, 10, 2);
+    extents.add(4, 14, 2);
+    assertEquals(-1, extents.get(3));
+    assertEquals(0, extents.add(2, 12, 2));
+    assertEquals(1, extents.size());
+    assertEquals(15, extents.get(5));
+    extents.add(8, 3, 1);
+    assertEquals(1, extents.find(8));
+    assertEquals(-1, extents.find(7));
+  }
+
+  @Test
+  public void testTruncate() {
+    Extents extents = new Extents();
+    extents.append(10, 3);
+    extents.append(20, 3);
+    List<Integer> released = new ArrayList<>();
+    assertEquals(1, extents.truncate(2, released::add));
+    assertEquals(List.of(20, 21, 22, 12), released);
+    assertEquals(2, extents.getBlockCount());
+    assertEquals(2, extents.end());
+    assertEquals(0, extents.truncate(0, released::add));
+    assertTrue(extents.isEmpty());
+  }
+}
@@ -0,0 +1,150 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class FileSystemConcurrencyTest {
+
+  private static final int THREADS = 8;
+  private static final int BLOCK_SIZE = 64;
+  private static final int BLOCKS_PER_FILE = 256;
+
+  @Test
+  public void testWritesToSeparateFiles() throws Exception {
+    FileSystem fileSystem = new FileSystem(new Geometry(BLOCK_SIZE, 4096, 64, 16, 3));
+    run(thread -> {
+      String path = "d" + thread + "/f";
+      assertTrue(fileSystem.createDirectory("d" + thread));
+      assertTrue(fileSystem.addFile(path));
+      assertTrue(fileSystem.truncate(path, BLOCK_SIZE * BLOCKS_PER_FILE));
+      int fd = fileSystem.openFile(path);
+      ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+      for (int i = 0; i < BLOCKS_PER_FILE; i++) {
+        fill(block, thread);
+        assertEquals(BLOCK_SIZE, fileSystem.write(fd, (long) i * BLOCK_SIZE, block));
+      }
+      return fd;
+    });
+    assertEquals(4096 - THREADS * BLOCKS_PER_FILE, fileSystem.getAllocator().getFreeCount());
+    for (int thread = 0; thread < THREADS; thread++) {
+      int fd = fileSystem.openFile("d" + thread + "/f");
+      ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE * BLOCKS_PER_FILE);
+      assertEquals(data.capacity(), fileSystem.read(fd, 0, data));
+      for (int i = 0; i < data.capacity(); i++) {
+        assertEquals(thread, data.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testWritesToOneFile() throws Exception {
+    FileSystem fileSystem = new FileSystem(new Geometry(BLOCK_SIZE, 4096, 64, 16, 3));
+    assertTrue(fileSystem.addFile("f"));
+    assertTrue(fileSystem.truncate("f", BLOCK_SIZE * BLOCKS_PER_FILE));
+    run(thread -> {
+      int fd = fileSystem.openFile("f");
+      ByteBuffer chunk = ByteBuffer.allocate(BLOCK_SIZE / 2);
+      ByteBuffer check = ByteBuffer.allocate(BLOCK_SIZE / 2);
+      for (int i = thread; i < BLOCKS_PER_FILE * 2; i += THREADS) {
+        fill(chunk, thread);
+        long offset = (long) i * chunk.capacity();
+        assertEquals(chunk.capacity(), fileSystem.write(fd, offset, chunk));
+        assertEquals(check.capacity(), fileSystem.read(fd, offset, check.clear()));
+        assertEquals(thread, check.get(0));
+      }
+      return fileSystem.closeFile(fd);
+    });
+    int fd = fileSystem.openFile("f");
+    ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE * BLOCKS_PER_FILE);
+    fileSystem.read(fd, 0, data);
+    for (int i = 0; i < data.capacity(); i++) {
+      assertEquals(i / (BLOCK_SIZE / 2) % THREADS, data.get(i));
+    }
+    assertEquals(4096 - BLOCKS_PER_FILE, fileSystem.getAllocator().getFreeCount());
+  }
+
+  @Test
+  public void testLookupsDuringNamespaceChanges() throws Exception {
+    FileSystem fileSystem = new FileSystem(new Geometry(BLOCK_SIZE, 4096, 64, 16, 3));
+    assertTrue(fileSystem.createDirectory("a/b/c"));
+    assertTrue(fileSystem.addFile("a/b/c/f"));
+    assertTrue(fileSystem.createSymlink("a/b", "s"));
+    assertTrue(fileSystem.createDirectory("x"));
+    run(thread -> {
+      for (int i = 0; i < 500; i++) {
+        if (thread == 0) {
+          assertTrue(fileSystem.addFile("x/" + i));
+          assertTrue(fileSystem.unlink("x/" + i));
+        } else {
+          int fd = fileSystem.openFile(thread % 2 == 0 ? "a/b/c/f" : "s/c/f");
+          assertNotEquals(-1, fd);
+          assertTrue(fileSystem.closeFile(fd));
+        }
+      }
+      return null;
+    });
+    assertEquals(6, fileSystem.getDescriptors().size());
+    assertEquals(0, fileSystem.getOpenFiles().size());
+  }
+
+  @Test
+  public void testStatDuringChanges() throws Exception {
+    FileSystem fileSystem = new FileSystem(new Geometry(BLOCK_SIZE, 4096, 2048, 16, 3));
+    assertTrue(fileSystem.addFile("t"));
+    run(thread -> {
+      for (int i = 0; i < 1000; i++) {
+        if (thread == 0) {
+          assertTrue(fileSystem.addFile("f" + i));
+        } else if (thread == 1) {
+          assertTrue(fileSystem.truncate("t", BLOCK_SIZE * (i % 64)));
+        } else {
+          assertNotNull(fileSystem.stat(0));
+          for (int id = i; id < 2048; id += 97) {
+            fileSystem.stat(id);
+          }
+        }
+      }
+      return null;
+    });
+    assertEquals(1001, fileSystem.getDescriptors().size());
+    assertNull(fileSystem.stat(2047));
+    assertNull(fileSystem.stat(-1));
+  }
+
+  private static void fill(ByteBuffer buffer, int value) {
+    buffer.clear();
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) value);
+    }
+    buffer.flip();
+  }
+
+  private static void run(Task task) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<Object>> futures = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        int id = thread;
+        futures.add(executor.submit((Callable<Object>) () -> task.run(id)));
+      }
+      for (Future<Object> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private interface Task {
+
+    Object run(int thread) throws Exception;
+  }
+}
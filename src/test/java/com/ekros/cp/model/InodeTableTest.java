@@ -0,0 +1,71 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class InodeTableTest {
+
+  @Test
+  public void testAllocateAndRelease() {
+    InodeTable table = new InodeTable(100);
+    Descriptor[] descriptors = new Descriptor[100];
+    for (int i = 0; i < 100; i++) {
+      descriptors[i] = new Descriptor(false, false, null, 0, null, null);
+      assertEquals(i, table.allocate(descriptors[i]));
+      assertEquals(i, descriptors[i].getId());
+    }
+    assertTrue(table.isFull());
+    assertEquals(-1, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    table.release(descriptors[40]);
+    table.release(descriptors[40]);
+    assertEquals(99, table.size());
+    assertNull(table.get(40));
+    Descriptor descriptor = new Descriptor(true, false, null, 0, null, null);
+    assertEquals(40, table.allocate(descriptor));
+    assertSame(descriptor, table.get(40));
+    table.release(descriptors[40]);
+    assertSame(descriptor, table.get(40));
+  }
+
+  @Test
+  public void testRestore() {
+    InodeTable table = new InodeTable(10);
+    table.restore(7, new Descriptor(false, false, null, 0, null, null));
+    table.restore(2, new Descriptor(false, false, null, 0, null, null));
+    assertEquals(2, table.size());
+    assertEquals(7, table.get(7).getId());
+    assertEquals(0, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertEquals(1, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertEquals(3, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertFalse(table.contains(-1));
+    assertFalse(table.contains(10));
+  }
+
+  @Test
+  public void testLazy() {
+    Descriptor[] disk = new Descriptor[10];
+    disk[1] = new Descriptor(false, false, null, 0, null, null);
+    disk[3] = new Descriptor(true, false, null, 0, null, null);
+    int[] reads = new int[1];
+    InodeTable table = new InodeTable(10, id -> {
+      reads[0]++;
+      return disk[id];
+    });
+    assertFalse(table.isResolved(3));
+    assertSame(disk[3], table.get(3));
+    assertTrue(table.isResolved(3));
+    assertSame(disk[3], table.get(3));
+    assertEquals(1, reads[0]);
+    assertNull(table.get(5));
+    assertEquals(5, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertEquals(0, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertEquals(2, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertSame(disk[1], table.get(1));
+    assertEquals(5, reads[0]);
+    assertEquals(5, table.size());
+    assertEquals(10, reads[0]);
+    assertEquals(4, table.allocate(new Descriptor(false, false, null, 0, null, null)));
+    assertFalse(table.isFull());
+  }
+}
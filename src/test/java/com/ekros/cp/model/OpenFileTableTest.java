@@ -0,0 +1,31 @@
+package com.ekros.cp.model;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class OpenFileTableTest {
+
+  @Test
+  public void testReuseClosedFds() {
+    OpenFileTable table = new OpenFileTable();
+    Descriptor first = new Descriptor(false, false, null, 0, null, null);
+    Descriptor second = new Descriptor(false, false, null, 0, null, null);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(i, table.open(i % 2 == 0 ? first : second));
+    }
+    assertEquals(10, first.getOpenCount());
+    assertSame(second, table.close(7));
+    assertSame(first, table.close(4));
+    assertNull(table.close(4));
+    assertNull(table.get(20));
+    assertEquals(4, table.open(second));
+    assertEquals(7, table.open(second));
+    assertEquals(20, table.open(first));
+    assertEquals(21, table.size());
+    table.clear();
+    assertEquals(0, first.getOpenCount());
+    assertEquals(0, second.getOpenCount());
+    assertEquals(0, table.open(first));
+  }
+}
@@ -0,0 +1,65 @@
+package com.ekros.cp.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlockDeviceTest {
+
+  @Test
+  public void testHeapReadWrite() {
+    testReadWrite(new HeapBlockDevice(8, 4));
+  }
+
+  @Test
+  public void testDirectReadWrite() {
+    testReadWrite(new DirectBlockDevice(8, 4));
+  }
+
+  @Test
+  public void testFileReadWrite(@TempDir Path dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir.resolve("image"), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      FileBlockDevice device = new FileBlockDevice(channel, 100, 8, 4);
+      testReadWrite(device);
+      ByteBuffer dst = ByteBuffer.allocate(8);
+      device.read(3, 0, dst);
+      assertArrayEquals(new byte[8], dst.array());
+    }
+  }
+
+  @Test
+  public void testZero() {
+    BlockDevice device = new DirectBlockDevice(8, 2);
+    device.write(1, 0, ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    device.zero(1);
+    ByteBuffer dst = ByteBuffer.allocate(8);
+    device.read(1, 0, dst);
+    assertArrayEquals(new byte[8], dst.array());
+  }
+
+  @Test
+  public void testOutOfBlock() {
+    BlockDevice device = new HeapBlockDevice(8, 2);
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> device.write(0, 6, ByteBuffer.allocate(3)));
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> device.read(2, 0, ByteBuffer.allocate(1)));
+  }
+
+  private void testReadWrite(BlockDevice device) {
+    device.write(2, 3, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+    ByteBuffer dst = ByteBuffer.allocate(5);
+    device.read(2, 2, dst);
+    assertArrayEquals(new byte[]{0, 1, 2, 3, 0}, dst.array());
+    dst.clear().limit(1);
+    device.read(1, 7, dst);
+    assertEquals(0, dst.get(0));
+  }
+}
@@ -0,0 +1,216 @@
+package com.ekros.cp.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class CachedBlockDeviceTest {
+
+  @Test
+  public void testHitsAndMisses() {
+    CachedBlockDevice device = new CachedBlockDevice(new HeapBlockDevice(4, 16), 4);
+    device.write(1, 1, ByteBuffer.wrap(new byte[]{7, 8}));
+    ByteBuffer dst = ByteBuffer.allocate(4);
+    device.read(1, 0, dst);
+    assertArrayEquals(new byte[]{0, 7, 8, 0}, dst.array());
+    assertEquals(1, device.getMisses());
+    assertEquals(1, device.getHits());
+    assertEquals(1, device.getDirtyCount());
+  }
+
+  @Test
+  public void testWriteBack() {
+    HeapBlockDevice backing = new HeapBlockDevice(4, 16);
+    CachedBlockDevice device = new CachedBlockDevice(backing, 4);
+    device.write(2, 0, ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+    ByteBuffer dst = ByteBuffer.allocate(4);
+    backing.read(2, 0, dst);
+    assertArrayEquals(new byte[4], dst.array());
+    device.sync();
+    backing.read(2, 0, dst.clear());
+    assertArrayEquals(new byte[]{1, 2, 3, 4}, dst.array());
+    assertEquals(0, device.getDirtyCount());
+    assertEquals(1, device.getWrites());
+  }
+
+  @Test
+  public void testEviction() {
+    HeapBlockDevice backing = new HeapBlockDevice(4, 16);
+    CachedBlockDevice device = new CachedBlockDevice(backing, 4);
+    for (int block = 0; block < 16; block++) {
+      device.write(block, 0, ByteBuffer.wrap(new byte[]{(byte) block, 0, 0, 0}));
+    }
+    assertEquals(4, device.getCapacity());
+    assertEquals(12, device.getEvictions());
+    assertEquals(12, device.getWrites());
+    ByteBuffer dst = ByteBuffer.allocate(1);
+    for (int block = 0; block < 16; block++) {
+      device.read(block, 0, dst.clear());
+      assertEquals(block, dst.get(0));
+    }
+    assertEquals(16, device.getWrites());
+  }
+
+  @Test
+  public void testSecondChance() {
+    CachedBlockDevice device = new CachedBlockDevice(new HeapBlockDevice(4, 16), 3);
+    ByteBuffer dst = ByteBuffer.allocate(1);
+    for (int block = 0; block < 3; block++) {
+      device.read(block, 0, dst.clear());
+    }
+    device.read(4, 0, dst.clear());
+    device.read(4, 0, dst.clear());
+    device.read(5, 0, dst.clear());
+    long misses = device.getMisses();
+    device.read(4, 0, dst.clear());
+    assertEquals(misses, device.getMisses());
+  }
+
+  @Test
+  public void testSyncInBlockOrder() {
+    Recorder backing = new Recorder(new HeapBlockDevice(4, 16));
+    CachedBlockDevice device = new CachedBlockDevice(backing, 8);
+    for (int block : new int[]{9, 3, 12, 1, 5}) {
+      device.write(block, 0, ByteBuffer.allocate(4));
+    }
+    assertTrue(backing.reads.isEmpty());
+    device.sync(new int[]{12, 3});
+    assertEquals(List.of(3, 12), backing.writes);
+    device.sync();
+    assertEquals(List.of(3, 12, 1, 5, 9), backing.writes);
+  }
+
+  @Test
+  public void testPartialWriteLoads() {
+    Recorder backing = new Recorder(new HeapBlockDevice(4, 16));
+    CachedBlockDevice device = new CachedBlockDevice(backing, 8);
+    device.write(2, 1, ByteBuffer.allocate(2));
+    device.zero(3);
+    assertEquals(List.of(2), backing.reads);
+  }
+
+  @Test
+  public void testOutOfBlock() {
+    CachedBlockDevice device = new CachedBlockDevice(new HeapBlockDevice(8, 2), 2);
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> device.write(0, 6, ByteBuffer.allocate(3)));
+    assertThrows(IndexOutOfBoundsException.class,
+        () -> device.read(2, 0, ByteBuffer.allocate(1)));
+  }
+
+  @Test
+  public void testStripesInParallel() throws Exception {
+    HeapBlockDevice backing = new HeapBlockDevice(4, 4096);
+    CachedBlockDevice device = new CachedBlockDevice(backing, 1024);
+    assertEquals(1024, device.getCapacity());
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        int first = i;
+        futures.add(executor.submit(() -> {
+          ByteBuffer dst = ByteBuffer.allocate(4);
+          for (int block = first; block < 4096; block += threads) {
+            device.write(block, 0, ByteBuffer.allocate(4).putInt(0, block));
+          }
+          for (int block = first; block < 4096; block += threads) {
+            device.read(block, 0, dst.clear());
+            assertEquals(block, dst.getInt(0));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    device.sync();
+    assertEquals(0, device.getDirtyCount());
+    ByteBuffer dst = ByteBuffer.allocate(4);
+    for (int block = 0; block < 4096; block++) {
+      backing.read(block, 0, dst.clear());
+      assertEquals(block, dst.getInt(0));
+    }
+  }
+
+  @Test
+  public void testMissDoesNotBlockOtherStripes() throws Exception {
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    BlockDevice slow = new Recorder(new HeapBlockDevice(4, 4096)) {
+      @Override
+      public void read(int block, int offset, ByteBuffer dst) {
+        if (block == 0) {
+          entered.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        super.read(block, offset, dst);
+      }
+    };
+    CachedBlockDevice device = new CachedBlockDevice(slow, 1024);
+    Thread reader = new Thread(() -> device.read(0, 0, ByteBuffer.allocate(4)));
+    reader.start();
+    try {
+      assertTrue(entered.await(10, TimeUnit.SECONDS));
+      // Blocks 0 and 1 hash to different stripes.
+      device.read(1, 0, ByteBuffer.allocate(4));
+    } finally {
+      release.countDown();
+      reader.join();
+    }
+    assertEquals(2, device.getMisses());
+  }
+
+  private static class Recorder implements BlockDevice {
+
+    private final BlockDevice device;
+    private final List<Integer> reads = new ArrayList<>();
+    private final List<Integer> writes = new ArrayList<>();
+
+    Recorder(BlockDevice device) {
+      this.device = device;
+    }
+
+    @Override
+    public int getBlockSize() {
+      return device.getBlockSize();
+    }
+
+    @Override
+    public int getBlockCount() {
+      return device.getBlockCount();
+    }
+
+    @Override
+    public void read(int block, int offset, ByteBuffer dst) {
+      reads.add(block);
+      device.read(block, offset, dst);
+    }
+
+    @Override
+    public void write(int block, int offset, ByteBuffer src) {
+      writes.add(block);
+      device.write(block, offset, src);
+    }
+
+    @Override
+    public void zero(int block) {
+      device.zero(block);
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package com.ekros.cp.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.model.Descriptor;
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.model.InodeTable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DiskImageTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testCreateAndRemount() throws IOException {
+    Path path = dir.resolve("image");
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.createDirectory("dir"));
+      assertTrue(fileSystem.addFile("dir/a"));
+      assertTrue(fileSystem.link("dir/a", "b"));
+      assertTrue(fileSystem.createSymlink("dir", "s"));
+      assertTrue(fileSystem.truncate("dir/a", 20));
+      assertEquals(0, fileSystem.openFile("dir/b"));
+      assertTrue(fileSystem.write(0, 9, 5));
+    }
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      assertEquals(3, fileSystem.getDescriptors().size());
+      assertEquals(FileSystem.MAX_BLOCKS - 3, fileSystem.getAllocator().getFreeCount());
+      assertTrue(fileSystem.changeDirectory("s"));
+      assertEquals(0, fileSystem.openFile("a"));
+      assertEquals("0111110", fileSystem.read(0, 8, 7));
+      assertEquals("00000000", fileSystem.read(0, 16, 8));
+      assertEquals(24, fileSystem.getDescriptors().get(1).getSize());
+      assertTrue(fileSystem.unlink("a"));
+      assertTrue(fileSystem.unlink("b"));
+      assertTrue(fileSystem.closeFile(0));
+    }
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      assertEquals(2, fileSystem.getDescriptors().size());
+      assertEquals(FileSystem.MAX_BLOCKS - 1, fileSystem.getAllocator().getFreeCount());
+      assertTrue(fileSystem.changeDirectory("dir"));
+      assertTrue(fileSystem.changeDirectory(".."));
+      assertTrue(fileSystem.format());
+    }
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.getDescriptors().isEmpty());
+      assertEquals(FileSystem.MAX_BLOCKS, fileSystem.getAllocator().getFreeCount());
+    }
+  }
+
+  @Test
+  public void testLazyMount() throws IOException {
+    Path path = dir.resolve("image");
+    Geometry geometry = new Geometry(16, 64, 64, 8, 4);
+    try (DiskImage image = DiskImage.create(open(path), geometry)) {
+      FileSystem fileSystem = image.mount();
+      for (int i = 0; i < 8; i++) {
+        assertTrue(fileSystem.createDirectory("d" + i));
+        assertTrue(fileSystem.addFile("d" + i + "/f"));
+      }
+      assertTrue(fileSystem.link("d0/f", "g"));
+    }
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      InodeTable descriptors = fileSystem.getDescriptors();
+      assertFalse(descriptors.isResolved(0));
+      assertFalse(fileSystem.getRoot().isLoaded());
+      assertNotEquals(-1, fileSystem.openFile("d5/f"));
+      assertTrue(fileSystem.getRoot().isLoaded());
+      assertFalse(fileSystem.getRoot().getByName("d3").isLoaded());
+      assertFalse(descriptors.isResolved(40));
+      assertTrue(fileSystem.addFile("d3/h"));
+      assertTrue(fileSystem.unlink("d0/g"));
+      assertEquals(5, fileSystem.prefetch(() -> false));
+      for (int i = 0; i < 8; i++) {
+        assertTrue(fileSystem.getRoot().getByName("d" + i).isLoaded());
+      }
+      assertEquals(17, descriptors.size());
+    }
+    try (DiskImage image = DiskImage.open(open(path))) {
+      FileSystem fileSystem = image.mount();
+      assertNotEquals(-1, fileSystem.openFile("d3/h"));
+      assertNotEquals(-1, fileSystem.openFile("d0/f"));
+      assertEquals(-1, fileSystem.openFile("d0/g"));
+      assertEquals(17, fileSystem.getDescriptors().size());
+    }
+  }
+
+  @Test
+  public void testLazyMountMatchesEager() throws IOException {
+    Path eager = dir.resolve("eager");
+    Path lazy = dir.resolve("lazy");
+    try (DiskImage image = DiskImage.create(open(eager), new Geometry(16, 64, 64, 8, 4))) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.createDirectory("a"));
+      assertTrue(fileSystem.createDirectory("a/b"));
+      assertTrue(fileSystem.createDirectory("a/b/c"));
+      assertTrue(fileSystem.addFile("a/x"));
+      assertTrue(fileSystem.addFile("a/b/y"));
+      assertTrue(fileSystem.addFile("a/b/c/f"));
+      assertTrue(fileSystem.truncate("a/b/c/f", 40));
+      assertTrue(fileSystem.link("a/b/y", "a/b/c/z"));
+      assertTrue(fileSystem.createSymlink("a/b", "s"));
+      assertTrue(fileSystem.createSymlink("c", "a/b/t"));
+    }
+    Files.copy(eager, lazy);
+
+    String expected;
+    try (DiskImage image = DiskImage.open(open(eager))) {
+      FileSystem fileSystem = image.mount();
+      assertEquals(4, fileSystem.prefetch(() -> false));
+      mutateBeforeFault(fileSystem);
+      mutateAfterFault(fileSystem);
+      expected = list(fileSystem);
+    }
+    try (DiskImage image = DiskImage.open(open(lazy))) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.changeDirectory("a"));
+      assertTrue(fileSystem.changeDirectory(".."));
+      Descriptor b = fileSystem.getRoot().getByName("a").getByName("b");
+      assertFalse(b.isLoaded());
+      mutateBeforeFault(fileSystem);
+      assertFalse(b.isLoaded());
+      assertEquals(2, fileSystem.prefetch(() -> false));
+      assertTrue(b.isLoaded());
+      assertTrue(b.getByName("c").isLoaded());
+      assertEquals(0, fileSystem.prefetch(() -> false));
+      mutateAfterFault(fileSystem);
+      assertEquals(expected, list(fileSystem));
+    }
+    for (Path path : new Path[]{eager, lazy}) {
+      try (DiskImage image = DiskImage.open(open(path))) {
+        FileSystem fileSystem = image.mount();
+        assertTrue(fileSystem.changeDirectory("s"));
+        assertTrue(fileSystem.changeDirectory("t"));
+        assertNotEquals(-1, fileSystem.openFile("f"));
+        assertEquals(expected, list(fileSystem), path.toString());
+      }
+    }
+  }
+
+  @Test
+  public void testRejectsForeignFile() throws IOException {
+    Path path = dir.resolve("image");
+    try (FileChannel channel = open(path)) {
+      channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4}));
+    }
+    assertThrows(IllegalStateException.class, () -> DiskImage.open(open(path)));
+  }
+
+  private static void mutateBeforeFault(FileSystem fileSystem) {
+    assertTrue(fileSystem.addFile("n"));
+    assertTrue(fileSystem.unlink("a/x"));
+    assertTrue(fileSystem.createSymlink("a", "r"));
+  }
+
+  private static void mutateAfterFault(FileSystem fileSystem) {
+    assertTrue(fileSystem.addFile("a/b/c/n"));
+    assertTrue(fileSystem.unlink("a/b/y"));
+    assertTrue(fileSystem.truncate("a/b/c/f", 100));
+    assertTrue(fileSystem.createDirectory("a/b/c/d"));
+    assertTrue(fileSystem.createSymlink("..", "a/b/c/d/u"));
+  }
+
+  /**
+   * Describes the whole tree, reading every directory, in a form that compares across mounts.
+   */
+  private static String list(FileSystem fileSystem) {
+    StringBuilder out = new StringBuilder();
+    list(fileSystem.getRoot(), "", out);
+    return out.toString();
+  }
+
+  private static void list(Descriptor directory, String prefix, StringBuilder out) {
+    for (Map.Entry<String, Descriptor> entry : new TreeMap<>(directory.getNameLinks()).entrySet()) {
+      Descriptor descriptor = entry.getValue();
+      String path = prefix + "/" + entry.getKey();
+      out.append(path).append(' ').append(descriptor.getId()).append(' ')
+          .append(descriptor.getSize()).append(' ').append(descriptor.getLinksAmount())
+          .append(' ').append(descriptor.getExtents().size()).append(' ')
+          .append(descriptor.isSymlink() ? descriptor.getSymlink() : "").append('\n');
+      if (descriptor.isDirectory()) {
+        list(descriptor, path, out);
+      }
+    }
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+}
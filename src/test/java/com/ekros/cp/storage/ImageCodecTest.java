@@ -0,0 +1,166 @@
+package com.ekros.cp.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ImageCodecTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    byte[] dump;
+    int free;
+    Geometry geometry = new Geometry(16, 64, 16, 8, 4);
+    try (DiskImage image = DiskImage.create(open(dir.resolve("source")), geometry)) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.createDirectory("dir"));
+      assertTrue(fileSystem.addFile("dir/a"));
+      assertTrue(fileSystem.link("dir/a", "b"));
+      assertTrue(fileSystem.createSymlink("dir", "s"));
+      assertTrue(fileSystem.truncate("dir/a", 512));
+      int fd = fileSystem.openFile("dir/b");
+      assertEquals(3, fileSystem.write(fd, 400, ByteBuffer.wrap(new byte[]{7, 8, 9})));
+      assertTrue(fileSystem.closeFile(fd));
+      free = fileSystem.getAllocator().getFreeCount();
+      dump = dump(fileSystem);
+    }
+    try (DiskImage image = ImageCodec.restore(new ByteArrayInputStream(dump),
+        open(dir.resolve("copy")))) {
+      FileSystem fileSystem = image.mount();
+      assertEquals(3, fileSystem.getDescriptors().size());
+      assertEquals(free, fileSystem.getAllocator().getFreeCount());
+      assertTrue(fileSystem.changeDirectory("s"));
+      int fd = fileSystem.openFile("a");
+      ByteBuffer dst = ByteBuffer.allocate(4);
+      assertEquals(4, fileSystem.read(fd, 399, dst));
+      assertArrayEquals(new byte[]{0, 7, 8, 9}, dst.array());
+      assertEquals(2, fileSystem.getDescriptors().get(1).getLinksAmount());
+      assertArrayEquals(dump, dump(fileSystem));
+    }
+  }
+
+  @Test
+  public void testDeepTree() throws IOException {
+    int depth = 10_000;
+    Geometry geometry = new Geometry(16, 16, depth + 1, 8, 4);
+    byte[] dump;
+    try (DiskImage image = DiskImage.create(open(dir.resolve("source")), geometry)) {
+      FileSystem fileSystem = image.mount();
+      for (int i = 0; i < depth; i++) {
+        assertTrue(fileSystem.createDirectory("d"));
+        assertTrue(fileSystem.changeDirectory("d"));
+      }
+      assertTrue(fileSystem.addFile("leaf"));
+      dump = dump(fileSystem);
+    }
+    try (DiskImage image = ImageCodec.restore(new ByteArrayInputStream(dump),
+        open(dir.resolve("copy")))) {
+      FileSystem fileSystem = image.mount();
+      assertEquals(depth + 1, fileSystem.getDescriptors().size());
+      for (int i = 0; i < depth; i++) {
+        assertTrue(fileSystem.changeDirectory("d"));
+      }
+      assertNotEquals(-1, fileSystem.openFile("leaf"));
+    }
+  }
+
+  @Test
+  public void testRejectsCorruptDump() throws IOException {
+    byte[] dump;
+    try (DiskImage image = DiskImage.create(open(dir.resolve("source")), Geometry.DEFAULT)) {
+      FileSystem fileSystem = image.mount();
+      assertTrue(fileSystem.addFile("a"));
+      dump = dump(fileSystem);
+    }
+    dump[dump.length / 2] ^= 1;
+    assertThrows(IOException.class, () -> ImageCodec.restore(new ByteArrayInputStream(dump),
+        open(dir.resolve("copy"))));
+    dump[0] ^= 1;
+    assertThrows(IOException.class, () -> ImageCodec.restore(new ByteArrayInputStream(dump),
+        open(dir.resolve("copy"))));
+  }
+
+  @Test
+  public void testRejectsCorruptRecord() throws IOException {
+    IOException e = assertThrows(IOException.class, () -> ImageCodec.restore(
+        new ByteArrayInputStream(record(0, Integer.MAX_VALUE)), open(dir.resolve("copy"))));
+    assertTrue(e.getMessage().startsWith("Corrupt inode record"), e.getMessage());
+    e = assertThrows(IOException.class, () -> ImageCodec.restore(
+        new ByteArrayInputStream(record(Integer.MAX_VALUE, 0)), open(dir.resolve("copy"))));
+    assertTrue(e.getMessage().startsWith("Corrupt inode record"), e.getMessage());
+  }
+
+  @Test
+  public void testLongNames() throws IOException {
+    String name = "\u20ac".repeat(Short.MAX_VALUE);
+    FileSystem source = new FileSystem(new Geometry(16, 16, 2, Short.MAX_VALUE, 4));
+    assertTrue(source.addFile(name));
+    byte[] dump = dump(source);
+    try (DiskImage image = ImageCodec.restore(new ByteArrayInputStream(dump),
+        open(dir.resolve("copy")))) {
+      assertNotEquals(-1, image.mount().openFile(name));
+    }
+  }
+
+  @Test
+  public void testRejectsEntriesOfFile() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(record(0, 0));
+    out.writeInt(1);
+    out.writeInt(0);
+    out.writeInt(0);
+    IOException e = assertThrows(IOException.class, () -> ImageCodec.restore(
+        new ByteArrayInputStream(bytes.toByteArray()), open(dir.resolve("copy"))));
+    assertTrue(e.getMessage().contains("not a directory"), e.getMessage());
+  }
+
+  /**
+   * Builds the start of a dump holding one symlink record with the given counts.
+   */
+  private static byte[] record(int runs, int length) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(ImageCodec.MAGIC);
+    out.writeInt(ImageCodec.VERSION);
+    out.writeInt(16);
+    out.writeInt(64);
+    out.writeInt(16);
+    out.writeInt(8);
+    out.writeInt(4);
+    out.writeInt(1);
+    out.writeInt(0);
+    out.writeByte(3);
+    out.writeInt(-1);
+    out.writeInt(0);
+    out.writeInt(1);
+    out.writeInt(runs);
+    out.writeInt(length);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] dump(FileSystem fileSystem) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageCodec.dump(fileSystem, out);
+    return out.toByteArray();
+  }
+
+  private static FileChannel open(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+}
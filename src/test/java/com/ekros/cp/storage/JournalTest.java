@@ -0,0 +1,69 @@
+package com.ekros.cp.storage;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.model.FileSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testReplayAfterCrash() throws IOException {
+    FileChannel channel = open("image");
+    FileChannel journal = open("journal");
+    DiskImage image = DiskImage.open(channel, journal);
+    FileSystem fileSystem = image.mount();
+    assertTrue(fileSystem.createDirectory("dir"));
+    image.commit();
+    assertTrue(fileSystem.addFile("dir/a"));
+    image.commit();
+    assertTrue(fileSystem.link("dir/a", "b"));
+    image.flush();
+    assertTrue(fileSystem.addFile("lost"));
+    journal.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2, 3}), journal.size());
+    channel.close();
+    journal.close();
+
+    try (DiskImage unjournaled = DiskImage.open(open("image"))) {
+      assertTrue(unjournaled.mount().getDescriptors().isEmpty());
+    }
+    try (DiskImage recovered = DiskImage.open(open("image"), open("journal"))) {
+      FileSystem restored = recovered.mount();
+      assertEquals(2, restored.getDescriptors().size());
+      assertTrue(restored.changeDirectory("dir"));
+      assertEquals(0, restored.openFile("b"));
+    }
+    try (DiskImage checkpointed = DiskImage.open(open("image"))) {
+      assertEquals(2, checkpointed.mount().getDescriptors().size());
+    }
+  }
+
+  @Test
+  public void testCheckpointEmptiesJournal() throws IOException {
+    try (DiskImage image = DiskImage.open(open("image"))) {
+      Journal journal = new Journal(open("journal"), image, 2, 60_000, Long.MAX_VALUE);
+      journal.append((int) image.getSuperblock().getBitmapOffset(),
+          ByteBuffer.allocate(Long.BYTES).putLong(0, 1L));
+      journal.commit();
+      assertTrue(journal.size() > 8);
+      journal.checkpoint();
+      assertEquals(8, journal.size());
+      journal.close();
+      assertEquals(FileSystem.MAX_BLOCKS - 1, image.mount().getAllocator().getFreeCount());
+    }
+  }
+
+  private FileChannel open(String name) throws IOException {
+    return FileChannel.open(dir.resolve(name), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+}
@@ -5,8 +5,9 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import com.ekros.cp.model.Block;
 import com.ekros.cp.model.FileSystem;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -45,8 +46,12 @@ class FSUtilsTest {
   @Test
   public void testCreateFileIfBlocksFull(){
     FSUtils.create("test");
-    assertTrue(FSUtils.truncate("test", FileSystem.MAX_BLOCKS * Block.MAX_BLOCK_SIZE));
-    assertFalse(FSUtils.create("test2"));
+    assertTrue(FSUtils.truncate("test", FileSystem.MAX_BLOCKS * FileSystem.MAX_BLOCK_SIZE));
+    assertTrue(FSUtils.create("test2"));
+    FSUtils.open("test");
+    assertFalse(FSUtils.write(0, 0, FileSystem.MAX_BLOCKS * FileSystem.MAX_BLOCK_SIZE));
+    assertTrue(FSUtils.write(0, 0, (FileSystem.MAX_BLOCKS - 1) * FileSystem.MAX_BLOCK_SIZE));
+    assertFalse(FSUtils.create("test3"));
   }
 
   @Test
@@ -96,18 +101,21 @@ class FSUtilsTest {
 
   @Test
   public void testOpenClose() {
-    assertFalse(FSUtils.open("test"));
+    assertEquals(-1, FSUtils.open("test"));
     assertFalse(FSUtils.close(0));
     FSUtils.create("test");
     FSUtils.create("test2");
     FSUtils.link("test", "test3");
-    assertTrue(FSUtils.open("test"));
-    assertTrue(FSUtils.open("test2"));
+    assertEquals(0, FSUtils.open("test"));
+    assertEquals(1, FSUtils.open("test2"));
     assertTrue(FSUtils.close(1));
     assertTrue(FSUtils.close(0));
-    assertTrue(FSUtils.open("test3"));
-    assertTrue(FSUtils.open("test"));
+    assertEquals(0, FSUtils.open("test3"));
+    assertEquals(1, FSUtils.open("test"));
+    assertEquals(2, FSUtils.fileSystem.getDescriptors().get(0).getOpenCount());
     assertTrue(FSUtils.close(0));
+    assertFalse(FSUtils.close(0));
+    assertEquals(1, FSUtils.fileSystem.getDescriptors().get(0).getOpenCount());
   }
 
   @Test
@@ -157,7 +165,7 @@ class FSUtilsTest {
     FSUtils.unlink("test");
     assertEquals("11111", FSUtils.read(0, 2, 5));
     FSUtils.close(0);
-    assertFalse(FSUtils.open("test"));
+    assertEquals(-1, FSUtils.open("test"));
   }
 
   @Test
@@ -168,7 +176,8 @@ class FSUtilsTest {
     FSUtils.open("test2");
     assertFalse(FSUtils.truncate("test", 9999));
     assertFalse(FSUtils.truncate("test", -2));
-    assertFalse(FSUtils.truncate("test", (FileSystem.MAX_BLOCKS)*Block.MAX_BLOCK_SIZE));
+    assertFalse(FSUtils.truncate("test", (FileSystem.MAX_BLOCKS)*FileSystem.MAX_BLOCK_SIZE + 1));
+    assertTrue(FSUtils.truncate("test", (FileSystem.MAX_BLOCKS)*FileSystem.MAX_BLOCK_SIZE));
     assertTrue(FSUtils.truncate("test2", 20));
     assertTrue(FSUtils.truncate("test2",10));
     assertTrue(FSUtils.truncate("test2", 20));
@@ -178,4 +187,175 @@ class FSUtilsTest {
     assertTrue(FSUtils.truncate("test", 12));
     assertEquals("0111111", FSUtils.read(0, 9, 7));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testMkfsWithGeometry() {
+    assertFalse(FSUtils.mkfs(0, 10, 10, 10, 3));
+    assertTrue(FSUtils.mkfs(64, 4096, 1000, 32, 4));
+    for (int i = 0; i < 500; i++) {
+      assertTrue(FSUtils.create("file-with-long-name-" + i));
+    }
+    assertTrue(FSUtils.truncate("file-with-long-name-0", 64 * 1000));
+    assertTrue(FSUtils.unmount());
+    assertTrue(FSUtils.mount());
+    assertEquals(1000, FSUtils.fileSystem.getGeometry().getInodeCount());
+    assertEquals(500, FSUtils.fileSystem.getDescriptors().size());
+    assertEquals(4096 - 500, FSUtils.fileSystem.getAllocator().getFreeCount());
+  }
+
+  @Test
+  public void testLinksAmount() {
+    FSUtils.create("test");
+    assertTrue(FSUtils.link("test", "l1"));
+    assertTrue(FSUtils.link("l1", "l2"));
+    assertFalse(FSUtils.link("test", "l3"));
+    assertEquals(3, FSUtils.fileSystem.getDescriptors().get(0).getLinksAmount());
+    assertTrue(FSUtils.unlink("test"));
+    assertTrue(FSUtils.unlink("l1"));
+    assertEquals(FileSystem.MAX_BLOCKS - 1, FSUtils.fileSystem.getAllocator().getFreeCount());
+    assertEquals(0, FSUtils.open("l2"));
+    assertTrue(FSUtils.write(0, 0, 2));
+    assertTrue(FSUtils.unmount());
+    assertTrue(FSUtils.mount());
+    assertEquals(1, FSUtils.fileSystem.getDescriptors().get(0).getLinksAmount());
+    assertTrue(FSUtils.unlink("l2"));
+    assertEquals(FileSystem.MAX_BLOCKS, FSUtils.fileSystem.getAllocator().getFreeCount());
+    assertTrue(FSUtils.fileSystem.getDescriptors().isEmpty());
+  }
+
+  @Test
+  public void testRemoveNonEmptyDirectory() {
+    FSUtils.mkdir("dir");
+    FSUtils.create("dir/test");
+    FSUtils.rmdir("dir");
+    assertTrue(FSUtils.fileSystem.getDescriptors().contains(0));
+    FSUtils.unlink("dir/test");
+    FSUtils.rmdir("dir");
+    assertTrue(FSUtils.fileSystem.getDescriptors().isEmpty());
+  }
+
+  @Test
+  public void testPathCacheInvalidation() {
+    assertEquals(-1, FSUtils.open("dir/test"));
+    FSUtils.mkdir("dir");
+    FSUtils.create("dir/test");
+    assertEquals(0, FSUtils.open("dir/test"));
+    FSUtils.cd("dir");
+    assertEquals(1, FSUtils.open("test"));
+    assertEquals(-1, FSUtils.open("dir/test"));
+    FSUtils.cd("..");
+    FSUtils.symlink("dir", "s");
+    assertEquals(2, FSUtils.open("s/test"));
+    FSUtils.unlink("dir/test");
+    assertEquals(-1, FSUtils.open("dir/test"));
+    FSUtils.rmdir("dir");
+    assertEquals(-1, FSUtils.open("dir/../s/test"));
+    assertFalse(FSUtils.truncate("dir/test", 1));
+    FSUtils.mkfs();
+    assertEquals(-1, FSUtils.open("s/test"));
+  }
+
+  @Test
+  public void testPathResolution() {
+    assertTrue(FSUtils.mkfs(8, 10, 16, 10, 3));
+    FSUtils.mkdir("a/b/c");
+    assertTrue(FSUtils.create("a//b/./c/f"));
+    FSUtils.symlink("a/b", "s");
+    assertEquals(0, FSUtils.open("s/c/f"));
+    assertEquals(1, FSUtils.open("~/a/b/../b/c/f/"));
+    FSUtils.cd("s/c");
+    assertEquals(2, FSUtils.open("../../../s/c/f"));
+    assertEquals(-1, FSUtils.open("f/.."));
+    assertFalse(FSUtils.create(".."));
+    FSUtils.cd("f");
+    assertEquals(3, FSUtils.open("f"));
+  }
+
+  @Test
+  public void testRejectsLeadingSlash() {
+    assertTrue(FSUtils.mkfs(8, 10, 16, 10, 3));
+    assertFalse(FSUtils.create("/a"));
+    assertTrue(FSUtils.create("a"));
+    assertEquals(-1, FSUtils.open("/a"));
+    assertFalse(FSUtils.fileSystem.createDirectory("/d"));
+    assertFalse(FSUtils.fileSystem.link("/a", "b"));
+    assertFalse(FSUtils.fileSystem.unlink("/a"));
+    assertEquals(1, FSUtils.fileSystem.getDescriptors().size());
+  }
+
+  @Test
+  public void testSymlinkLoop() {
+    FSUtils.symlink("a", "a");
+    FSUtils.symlink("c", "b");
+    FSUtils.symlink("b/x", "c");
+    assertFalse(FSUtils.fileSystem.changeDirectory("a"));
+    assertFalse(FSUtils.fileSystem.changeDirectory("b"));
+    assertEquals(-1, FSUtils.open("c/x"));
+  }
+
+  @Test
+  public void testSymlinkTargetInvalidation() {
+    FSUtils.mkdir("dir");
+    FSUtils.symlink("dir", "s");
+    assertTrue(FSUtils.fileSystem.changeDirectory("s"));
+    assertTrue(FSUtils.fileSystem.changeDirectory("~"));
+    FSUtils.rmdir("dir");
+    assertFalse(FSUtils.fileSystem.changeDirectory("s"));
+    FSUtils.mkdir("dir");
+    FSUtils.create("dir/f");
+    assertEquals(0, FSUtils.open("s/f"));
+  }
+
+  @Test
+  public void testReadAndWriteBuffers() {
+    FSUtils.create("test");
+    FSUtils.truncate("test", 3 * FileSystem.MAX_BLOCK_SIZE);
+    FSUtils.open("test");
+    byte[] text = "hello, blocks".getBytes(StandardCharsets.UTF_8);
+    assertEquals(text.length, FSUtils.write(0, 5, ByteBuffer.wrap(text)));
+    assertEquals(-1, FSUtils.write(0, 20, ByteBuffer.wrap(text)));
+    assertEquals(-1, FSUtils.write(1, 0, ByteBuffer.wrap(text)));
+    assertTrue(FSUtils.unmount());
+    assertTrue(FSUtils.mount());
+    FSUtils.open("test");
+    ByteBuffer dst = ByteBuffer.allocate(64);
+    assertEquals(3 * FileSystem.MAX_BLOCK_SIZE - 4, FSUtils.read(0, 4, dst));
+    dst.flip();
+    assertEquals(0, dst.get());
+    assertEquals("hello, blocks", StandardCharsets.UTF_8.decode(dst.limit(14)).toString());
+    assertEquals(0, FSUtils.read(0, 3 * FileSystem.MAX_BLOCK_SIZE, dst.clear()));
+    assertEquals(-1, FSUtils.read(0, -1, dst));
+  }
+
+  @Test
+  public void testPartialBlockWrites() {
+    FSUtils.create("test");
+    FSUtils.truncate("test", 3 * FileSystem.MAX_BLOCK_SIZE);
+    FSUtils.open("test");
+    assertTrue(FSUtils.write(0, 7, 2));
+    assertTrue(FSUtils.write(0, 23, 1));
+    assertEquals("0000000110000000", FSUtils.read(0, 0, 16));
+    assertEquals("001", FSUtils.read(0, 21, 3));
+    assertEquals("", FSUtils.read(0, 22, 3));
+    assertFalse(FSUtils.write(0, 23, 2));
+  }
+
+  @Test
+  public void testSparseFile() {
+    FSUtils.create("test");
+    assertTrue(FSUtils.truncate("test", FileSystem.MAX_BLOCKS * FileSystem.MAX_BLOCK_SIZE));
+    assertEquals(FileSystem.MAX_BLOCKS - 1, FSUtils.fileSystem.getAllocator().getFreeCount());
+    assertTrue(FSUtils.fstat(0).contains("size=80, blocks=1"));
+    FSUtils.open("test");
+    assertTrue(FSUtils.write(0, 60, 2));
+    assertEquals("0011000", FSUtils.read(0, 58, 7));
+    assertTrue(FSUtils.fstat(0).contains("blocks=2"));
+    assertTrue(FSUtils.unmount());
+    assertTrue(FSUtils.mount());
+    FSUtils.open("test");
+    assertEquals("0011000", FSUtils.read(0, 58, 7));
+    assertTrue(FSUtils.truncate("test", 50));
+    assertTrue(FSUtils.fstat(0).contains("size=56, blocks=1"));
+    assertEquals(FileSystem.MAX_BLOCKS - 1, FSUtils.fileSystem.getAllocator().getFreeCount());
+  }
+}
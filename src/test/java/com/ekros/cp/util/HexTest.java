@@ -0,0 +1,22 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class HexTest {
+
+  @Test
+  public void testRoundTrip() {
+    byte[] data = Hex.decode("00ff7fA0");
+    assertArrayEquals(new byte[]{0, -1, 127, -96}, data);
+    assertEquals("00ff7fa0", Hex.encode(ByteBuffer.wrap(data)));
+  }
+
+  @Test
+  public void testInvalid() {
+    assertThrows(IllegalArgumentException.class, () -> Hex.decode("abc"));
+    assertThrows(IllegalArgumentException.class, () -> Hex.decode("zz"));
+  }
+}
@@ -0,0 +1,37 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+  @Test
+  public void testBuckets() {
+    long previous = -1;
+    for (long value : new long[]{0, 1, 31, 32, 33, 100, 1000, 123456789, Long.MAX_VALUE}) {
+      int index = Histogram.index(value);
+      assertTrue(index >= previous);
+      assertTrue(Histogram.highest(index) >= value);
+      assertTrue(Histogram.highest(index) - value <= value / 16);
+      previous = index;
+    }
+  }
+
+  @Test
+  public void testPercentiles() {
+    Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getPercentile(50));
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1_000_000, histogram.getMax());
+    assertEquals(500_500, histogram.getMean(), 1e-9);
+    assertEquals(500_000, histogram.getPercentile(50), 500_000 / 16.0);
+    assertEquals(990_000, histogram.getPercentile(99), 990_000 / 16.0);
+    assertEquals(1_000_000, histogram.getPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+  }
+}
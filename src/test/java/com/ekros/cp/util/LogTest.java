@@ -0,0 +1,110 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.util.Log.Appender;
+import com.ekros.cp.util.Log.Level;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LogTest {
+
+  private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+  private Appender appender;
+  private Level level;
+  private boolean quiet;
+
+  @BeforeEach
+  public void beforeEach() {
+    appender = Log.getAppender();
+    level = Log.getLevel();
+    quiet = Log.isQuiet();
+  }
+
+  @AfterEach
+  public void afterEach() {
+    Log.setAppender(appender);
+    Log.setLevel(level);
+    Log.setQuiet(quiet);
+  }
+
+  @Test
+  public void testParseLevel() {
+    assertEquals(Level.DEBUG, Log.parseLevel(" debug "));
+    assertEquals(Level.OFF, Log.parseLevel("OFF"));
+    assertEquals(Level.INFO, Log.parseLevel(null));
+    assertEquals(Level.INFO, Log.parseLevel("verbose"));
+  }
+
+  @Test
+  public void testLevels() {
+    Log.setAppender((level, message) -> messages.add(level + " " + message));
+    Log.setLevel(Level.INFO);
+    Log.debug(() -> fail("debug message built"));
+    Log.info("a");
+    Log.info(() -> "b");
+    Log.error("c");
+    Log.setLevel(Level.ERROR);
+    Log.info("d");
+    Log.error(() -> "e");
+    Log.setLevel(Level.OFF);
+    Log.error("f");
+    assertEquals(List.of("INFO a", "INFO b", "ERROR c", "ERROR e"), messages);
+  }
+
+  @Test
+  public void testQuiet() {
+    Log.setAppender((level, message) -> messages.add(message));
+    Log.setLevel(Level.INFO);
+    Log.payload(() -> "data");
+    Log.setQuiet(true);
+    Log.payload(() -> fail("payload built"));
+    Log.info("status");
+    assertEquals(List.of("data", "status"), messages);
+  }
+
+  @Test
+  public void testAsync() {
+    AsyncAppender async = new AsyncAppender((level, message) -> messages.add(message), 16);
+    for (int i = 0; i < 1000; i++) {
+      async.append(Level.INFO, Integer.toString(i));
+      if (i % 10 == 0) {
+        async.flush();
+      }
+    }
+    async.flush();
+    assertEquals(1000 - async.getDropped(), messages.size());
+    for (int i = 1; i < messages.size(); i++) {
+      assertTrue(Integer.parseInt(messages.get(i)) > Integer.parseInt(messages.get(i - 1)));
+    }
+  }
+
+  @Test
+  public void testAsyncDropsWhenFull() throws InterruptedException {
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AsyncAppender async = new AsyncAppender((level, message) -> {
+      blocked.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      messages.add(message);
+    }, 4);
+    async.append(Level.INFO, "first");
+    blocked.await();
+    for (int i = 0; i < 10; i++) {
+      async.append(Level.INFO, "m" + i);
+    }
+    assertEquals(7, async.getDropped());
+    release.countDown();
+    async.flush();
+    assertEquals(List.of("first", "m0", "m1", "m2"), messages);
+  }
+}
@@ -0,0 +1,79 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.model.BlockAllocator;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetricsTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testRecord() {
+    BlockAllocator allocator = new BlockAllocator(8);
+    Metrics metrics = new Metrics(allocator);
+    long start = System.nanoTime();
+    metrics.record("open", "a", start, true);
+    metrics.record("open", "b", start, false);
+    metrics.record(Metrics.PERSIST, start, true);
+    metrics.read(10);
+    metrics.written(-1);
+    allocator.allocateRun(3);
+    allocator.free(1);
+    assertEquals(2, metrics.getOperations());
+    assertEquals(1, metrics.getErrors());
+    assertEquals(1, metrics.getPersistCount());
+    assertEquals(10, metrics.getBytesRead());
+    assertEquals(0, metrics.getBytesWritten());
+    assertEquals(3, metrics.getBlocksAllocated());
+    assertEquals(1, metrics.getBlocksFreed());
+    assertEquals(2, metrics.getOperationStats().length);
+    assertEquals(2, metrics.getHotPaths().length);
+    metrics.reset();
+    assertEquals(0, metrics.getOperations());
+  }
+
+  @Test
+  public void testPathLimit() {
+    Metrics metrics = new Metrics(new BlockAllocator(8));
+    for (int i = 0; i < Metrics.MAX_PATHS + 10; i++) {
+      metrics.record("create", "f" + i, System.nanoTime(), true);
+    }
+    assertEquals(Metrics.MAX_PATHS + 10, metrics.getOperations());
+    assertEquals(10, metrics.getHotPaths().length);
+  }
+
+  @Test
+  public void testMountedMetrics() throws Exception {
+    Path path = dir.resolve("image");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(
+        "com.ekros.cp:type=Metrics,image=" + ObjectName.quote(path.toString()));
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertTrue(mounted.create("a"));
+      assertFalse(mounted.create("a"));
+      int fd = mounted.open("a");
+      assertEquals(4, mounted.write(fd, 0, ByteBuffer.allocate(4)));
+      assertEquals(4, mounted.read(fd, 0, ByteBuffer.allocate(4)));
+      assertTrue(server.isRegistered(name));
+      assertEquals(5L, server.getAttribute(name, "Operations"));
+      assertEquals(1L, server.getAttribute(name, "Errors"));
+      assertEquals(4L, server.getAttribute(name, "BytesWritten"));
+      assertEquals(4L, server.getAttribute(name, "BytesRead"));
+      assertEquals(1L, server.getAttribute(name, "BlocksAllocated"));
+      assertEquals(3L, server.getAttribute(name, "PersistCount"));
+      String report = mounted.stats();
+      assertTrue(report.contains("create"));
+      assertTrue(report.contains("hits="));
+    }
+    assertFalse(server.isRegistered(name));
+  }
+}
@@ -0,0 +1,54 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MountTableTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testMountAndUnmount() throws IOException {
+    try (MountTable table = new MountTable()) {
+      MountedFileSystem a = table.mount("a", dir.resolve("a"));
+      MountedFileSystem b = table.mount("b", dir.resolve("b"));
+      assertSame(a, table.get("a"));
+      assertEquals(Set.of("a", "b"), table.names());
+      assertTrue(a.create("x"));
+      assertTrue(b.getFileSystem().getDescriptors().isEmpty());
+      assertTrue(table.unmount("a"));
+      assertFalse(table.unmount("a"));
+      assertNull(table.get("a"));
+      assertEquals(1, table.size());
+    }
+  }
+
+  @Test
+  public void testBusy() throws IOException {
+    try (MountTable table = new MountTable()) {
+      table.mount("a", dir.resolve("a"));
+      assertThrows(IllegalStateException.class, () -> table.mount("a", dir.resolve("b")));
+      assertThrows(IllegalStateException.class,
+          () -> table.mount("b", dir.resolve("x/../a")));
+      assertEquals(1, table.size());
+    }
+  }
+
+  @Test
+  public void testCloseUnmountsAll() throws IOException {
+    MountTable table = new MountTable();
+    table.mount("a", dir.resolve("a")).create("x");
+    table.mount("b", dir.resolve("b"));
+    table.close();
+    assertEquals(0, table.size());
+    try (MountedFileSystem mounted = MountedFileSystem.mount(dir.resolve("a"))) {
+      assertTrue(mounted.getFileSystem().getDescriptors().contains(0));
+    }
+  }
+}
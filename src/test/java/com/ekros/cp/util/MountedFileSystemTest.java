@@ -0,0 +1,375 @@
+package com.ekros.cp.util;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.model.Descriptor;
+import com.ekros.cp.model.FileSystem;
+import com.ekros.cp.model.Geometry;
+import com.ekros.cp.storage.CachedBlockDevice;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MountedFileSystemTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void testMountAndRemount() throws IOException {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertTrue(Files.exists(path));
+      assertTrue(Files.exists(OsUtils.journalPath(path)));
+      assertTrue(mounted.mkdir("dir"));
+      assertTrue(mounted.create("dir/a"));
+      int fd = mounted.open("dir/a");
+      assertEquals(5, mounted.write(fd, 3, utf8("hello")));
+      mounted.unmount();
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      int fd = mounted.open("dir/a");
+      ByteBuffer dst = ByteBuffer.allocate(5);
+      assertEquals(5, mounted.read(fd, 3, dst));
+      assertEquals("hello", new String(dst.array(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void testMkfs() throws IOException {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertTrue(mounted.create("a"));
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path,
+        new Geometry(64, 4096, 1000, 32, 4))) {
+      assertTrue(mounted.getFileSystem().getDescriptors().isEmpty());
+      assertEquals(1000, mounted.getFileSystem().getGeometry().getInodeCount());
+    }
+  }
+
+  @Test
+  public void testDumpAndRestore() throws IOException {
+    Path file = dir.resolve("dump");
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(dir.resolve("image"),
+        new Geometry(64, 4096, 1000, 32, 4))) {
+      assertTrue(mounted.mkdir("dir"));
+      assertTrue(mounted.create("dir/a"));
+      assertTrue(mounted.truncate("dir/a", 64));
+      int fd = mounted.open("dir/a");
+      assertEquals(5, mounted.write(fd, 3, utf8("hello")));
+      assertTrue(mounted.dump(file));
+    }
+    Path copy = dir.resolve("copy");
+    try (MountedFileSystem mounted = MountedFileSystem.restore(copy, file)) {
+      assertEquals(1000, mounted.getFileSystem().getGeometry().getInodeCount());
+      assertTrue(mounted.create("b"));
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(copy)) {
+      int fd = mounted.open("dir/a");
+      ByteBuffer dst = ByteBuffer.allocate(5);
+      assertEquals(5, mounted.read(fd, 3, dst));
+      assertEquals("hello", new String(dst.array(), StandardCharsets.UTF_8));
+      assertNotEquals(-1, mounted.open("b"));
+    }
+  }
+
+  @Test
+  public void testFailedRestoreKeepsImage() throws IOException {
+    Path path = dir.resolve("image");
+    Path file = dir.resolve("dump");
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertTrue(mounted.create("a"));
+      assertTrue(mounted.dump(file));
+      assertTrue(mounted.create("b"));
+    }
+    byte[] image = Files.readAllBytes(path);
+    assertThrows(IOException.class,
+        () -> MountedFileSystem.restore(path, dir.resolve("missing")));
+    byte[] dump = Files.readAllBytes(file);
+    dump[dump.length / 2] ^= 1;
+    Files.write(file, dump);
+    assertThrows(IOException.class, () -> MountedFileSystem.restore(path, file));
+    assertArrayEquals(image, Files.readAllBytes(path));
+    assertFalse(Files.exists(dir.resolve("image.restore")));
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertNotEquals(-1, mounted.open("a"));
+      assertNotEquals(-1, mounted.open("b"));
+    }
+  }
+
+  @Test
+  public void testPrefetch() throws IOException {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path,
+        new Geometry(64, 4096, 1000, 32, 4))) {
+      for (int i = 0; i < 100; i++) {
+        assertTrue(mounted.mkdir("d" + i));
+        assertTrue(mounted.create("d" + i + "/f"));
+      }
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      mounted.prefetch();
+      mounted.getPrefetcher().join();
+      assertTrue(mounted.getFileSystem().getRoot().getByName("d99").isLoaded());
+      assertEquals(1, mounted.getMetrics().getLatency("prefetch").getCount());
+      assertTrue(mounted.create("d7/g"));
+      mounted.prefetch();
+    } catch (InterruptedException e) {
+      fail(e);
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertNotEquals(-1, mounted.open("d7/g"));
+      assertEquals(201, mounted.getFileSystem().getDescriptors().size());
+    }
+  }
+
+  @Test
+  public void testPrefetchAfterPartialWalk() throws Exception {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path,
+        new Geometry(64, 4096, 1000, 32, 4))) {
+      assertTrue(mounted.mkdir("a"));
+      assertTrue(mounted.mkdir("a/b"));
+      assertTrue(mounted.mkdir("a/b/c"));
+      assertTrue(mounted.create("a/b/c/f"));
+      assertTrue(mounted.symlink("a/b", "s"));
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertTrue(mounted.cd("a"));
+      assertTrue(mounted.create("g"));
+      Descriptor b = mounted.getFileSystem().getRoot().getByName("a").getByName("b");
+      assertFalse(b.isLoaded());
+      mounted.prefetch();
+      mounted.getPrefetcher().join();
+      assertTrue(b.isLoaded());
+      assertTrue(b.getByName("c").isLoaded());
+      assertTrue(mounted.cd("../s/c"));
+      assertTrue(mounted.create("h"));
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertNotEquals(-1, mounted.open("a/g"));
+      assertNotEquals(-1, mounted.open("s/c/f"));
+      assertNotEquals(-1, mounted.open("a/b/c/h"));
+      assertEquals(7, mounted.getFileSystem().getDescriptors().size());
+    }
+  }
+
+  @Test
+  public void testSync() throws IOException {
+    try (MountedFileSystem mounted = MountedFileSystem.mount(dir.resolve("image"))) {
+      assertTrue(mounted.create("a"));
+      assertTrue(mounted.create("b"));
+      int a = mounted.open("a");
+      int b = mounted.open("b");
+      assertEquals(5, mounted.write(a, 0, utf8("hello")));
+      assertEquals(5, mounted.write(b, 0, utf8("world")));
+      assertTrue(mounted.getImage().getDevice().getDirtyCount() > 0);
+      assertFalse(mounted.fsync(7));
+      assertTrue(mounted.fsync(a));
+      assertEquals(0, mounted.getImage().getDevice().getDirtyCount());
+      assertTrue(mounted.cache().contains("hits="));
+    }
+  }
+
+  @Test
+  public void testSyncWritesOverwrittenData() throws IOException {
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(dir.resolve("image"),
+        new Geometry(64, 256, 64, 16, 4))) {
+      assertTrue(mounted.create("a"));
+      int fd = mounted.open("a");
+      assertEquals(5, mounted.write(fd, 0, utf8("hello")));
+      assertTrue(mounted.sync());
+      CachedBlockDevice device = mounted.getImage().getDevice();
+      long writes = device.getWrites();
+      assertEquals(5, mounted.write(fd, 0, utf8("world")));
+      assertEquals(1, device.getDirtyCount());
+      assertTrue(mounted.sync());
+      assertEquals(0, device.getDirtyCount());
+      assertEquals(writes + 1, device.getWrites());
+      assertEquals(5, mounted.write(fd, 0, utf8("again")));
+      assertTrue(mounted.fsync(fd));
+      assertEquals(0, device.getDirtyCount());
+    }
+  }
+
+  @Test
+  public void testWriteBack() throws IOException {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      mounted.writeBack(60_000, 1000);
+      assertTrue(mounted.isWriteBack());
+      assertTrue(mounted.create("a"));
+      int fd = mounted.open("a");
+      assertEquals(5, mounted.write(fd, 0, utf8("hello")));
+      Flusher flusher = mounted.getFlusher();
+      assertEquals(2, flusher.getDirty());
+      assertEquals(0, flusher.getFlushes());
+      assertTrue(mounted.sync());
+      assertEquals(0, flusher.getDirty());
+      assertEquals(1, flusher.getFlushes());
+      assertTrue(mounted.mkdir("dir"));
+      mounted.unmount();
+      assertEquals(2, flusher.getFlushes());
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      assertFalse(mounted.isWriteBack());
+      assertTrue(mounted.cd("dir"));
+      assertEquals(2, mounted.getFileSystem().getDescriptors().size());
+    }
+  }
+
+  @Test
+  public void testFormatInWriteBack() throws IOException {
+    Path path = dir.resolve("image");
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path,
+        new Geometry(64, 256, 64, 16, 4))) {
+      mounted.writeBack(60_000, 1000);
+      assertTrue(mounted.create("a"));
+      assertTrue(mounted.create("b"));
+      assertTrue(mounted.format());
+      assertTrue(mounted.create("c"));
+    }
+    try (MountedFileSystem mounted = MountedFileSystem.mount(path)) {
+      FileSystem fileSystem = mounted.getFileSystem();
+      assertEquals(1, fileSystem.getDescriptors().size());
+      assertEquals(-1, mounted.open("a"));
+      assertEquals(-1, mounted.open("b"));
+      assertNotEquals(-1, mounted.open("c"));
+      assertEquals(255, fileSystem.getAllocator().getFreeCount());
+    }
+  }
+
+  @Test
+  public void testWriteBackThreshold() throws Exception {
+    try (MountedFileSystem mounted = MountedFileSystem.mount(dir.resolve("image"))) {
+      mounted.writeBack(60_000, 3);
+      Flusher flusher = mounted.getFlusher();
+      for (int i = 0; i < 3; i++) {
+        assertTrue(mounted.create("f" + i));
+      }
+      for (int i = 0; i < 100 && flusher.getFlushes() == 0; i++) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, flusher.getFlushes());
+      mounted.writeThrough();
+      assertFalse(mounted.isWriteBack());
+    }
+  }
+
+  @Test
+  public void testImagesInParallel() throws Exception {
+    int count = 4;
+    List<MountedFileSystem> mounts = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(count);
+    try {
+      for (int i = 0; i < count; i++) {
+        mounts.add(MountedFileSystem.mkfs(dir.resolve("image" + i),
+            new Geometry(64, 256, 64, 16, 4)));
+      }
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        MountedFileSystem mounted = mounts.get(i);
+        String payload = "image" + i;
+        futures.add(executor.submit(() -> {
+          for (int j = 0; j < 20; j++) {
+            assertTrue(mounted.create("f" + j));
+            int fd = mounted.open("f" + j);
+            assertEquals(payload.length(), mounted.write(fd, 0, utf8(payload)));
+            assertTrue(mounted.close(fd));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+      for (MountedFileSystem mounted : mounts) {
+        mounted.unmount();
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      try (MountedFileSystem mounted = MountedFileSystem.mount(dir.resolve("image" + i))) {
+        assertEquals(20, mounted.getFileSystem().getDescriptors().size());
+        int fd = mounted.open("f19");
+        ByteBuffer dst = ByteBuffer.allocate(6);
+        assertEquals(6, mounted.read(fd, 0, dst));
+        assertEquals("image" + i, new String(dst.array(), StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  @Test
+  public void testConcurrentWritesStayAtomic() throws Exception {
+    Path path = dir.resolve("image");
+    int threads = 4;
+    int blocks = 256;
+    List<Path> snapshots = new ArrayList<>();
+    try (MountedFileSystem mounted = MountedFileSystem.mkfs(path,
+        new Geometry(64, threads * blocks, 64, 16, 4))) {
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+          String name = "f" + i;
+          futures.add(executor.submit(() -> {
+            assertTrue(mounted.create(name));
+            for (int round = 0; round < 5; round++) {
+              assertTrue(mounted.truncate(name, 64 * blocks));
+              int fd = mounted.open(name);
+              for (int block = 0; block < blocks; block += 3) {
+                assertEquals(2, mounted.write(fd, 64L * block, utf8("ok")));
+              }
+              assertTrue(mounted.close(fd));
+              assertTrue(mounted.truncate(name, 64));
+            }
+            return null;
+          }));
+        }
+        while (!futures.stream().allMatch(Future::isDone)) {
+          Path snapshot = dir.resolve("snapshot" + snapshots.size());
+          Files.copy(OsUtils.journalPath(path), OsUtils.journalPath(snapshot));
+          Files.copy(path, snapshot);
+          snapshots.add(snapshot);
+        }
+        for (Future<?> future : futures) {
+          future.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+    }
+    assertFalse(snapshots.isEmpty());
+    for (Path snapshot : snapshots) {
+      try (MountedFileSystem mounted = MountedFileSystem.mount(snapshot)) {
+        FileSystem fileSystem = mounted.getFileSystem();
+        boolean[] owned = new boolean[fileSystem.getGeometry().getBlockCount()];
+        for (int id = 0; id < fileSystem.getGeometry().getInodeCount(); id++) {
+          Descriptor descriptor = fileSystem.getDescriptors().get(id);
+          if (descriptor != null) {
+            descriptor.getExtents().forEach(block -> owned[block] = true);
+          }
+        }
+        for (int block = 0; block < owned.length; block++) {
+          assertEquals(owned[block], fileSystem.getAllocator().isUsed(block),
+              snapshot + " block " + block);
+        }
+      }
+    }
+  }
+
+  private static ByteBuffer utf8(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+}
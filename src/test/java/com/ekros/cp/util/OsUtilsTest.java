@@ -2,17 +2,31 @@ package com.ekros.cp.util;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import org.junit.jupiter.api.Test;
 
 class OsUtilsTest {
   @Test
-  public void testClearAndReadTest(){
+  public void testClearAndOpenTest() throws IOException {
     OsUtils.clear();
-    assertNotNull(OsUtils.readFs());
+    try (FileChannel channel = OsUtils.openFs()) {
+      assertNotNull(channel);
+      assertEquals(0, channel.size());
+    }
+    assertTrue(OsUtils.clear());
+    assertFalse(OsUtils.clear());
   }
   @Test
-  public void testUpdateAndReadTest(){
-    OsUtils.updateFs(new byte[]{0, 1, 3, 4, 53, 1, 3, 10});
-    assertNotNull(OsUtils.readFs());
+  public void testWriteAndOpenTest() throws IOException {
+    OsUtils.clear();
+    try (FileChannel channel = OsUtils.openFs()) {
+      channel.write(ByteBuffer.wrap(new byte[]{0, 1, 3, 4, 53, 1, 3, 10}));
+    }
+    try (FileChannel channel = OsUtils.openFs()) {
+      assertEquals(8, channel.size());
+    }
+    OsUtils.clear();
   }
-}
\ No newline at end of file
+}
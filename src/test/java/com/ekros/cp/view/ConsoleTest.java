@@ -0,0 +1,87 @@
+package com.ekros.cp.view;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.ekros.cp.util.FSUtils;
+import com.ekros.cp.util.Log;
+import com.ekros.cp.util.Log.Appender;
+import com.ekros.cp.util.OsUtils;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConsoleTest {
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  public void afterEach() {
+    FSUtils.unmount();
+    FSUtils.mount(OsUtils.getPath());
+    FSUtils.unmount();
+  }
+
+  @Test
+  public void testBatch() throws IOException {
+    Path image = dir.resolve("image");
+    String script = "mount " + image + "\n"
+        + "# comment\n"
+        + "\n"
+        + "mkfs 64 4096 1000 32 4\n"
+        + "mkdir dir\n"
+        + "create dir/a\n"
+        + "open dir/a\n"
+        + "pwrite 0 0 hello\n"
+        + "sync\n"
+        + "close 0\n"
+        + "unmount\n"
+        + "mount " + image + "\n";
+    assertEquals(10, Console.batch(new BufferedReader(new StringReader(script))));
+    assertTrue(FSUtils.isWriteBack());
+    assertEquals(2, FSUtils.fileSystem.getDescriptors().size());
+    int fd = FSUtils.open("dir/a");
+    ByteBuffer dst = ByteBuffer.allocate(5);
+    assertEquals(5, FSUtils.read(fd, 0, dst));
+    assertEquals("hello", new String(dst.array(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testBatchPersistsAtEnd() throws IOException {
+    Path image = dir.resolve("image");
+    String script = "mount " + image + "\n"
+        + "create a\n"
+        + "create b\n";
+    assertEquals(3, Console.batch(new BufferedReader(new StringReader(script))));
+    FSUtils.unmount();
+    assertTrue(FSUtils.mount(image));
+    assertEquals(2, FSUtils.fileSystem.getDescriptors().size());
+  }
+
+  @Test
+  public void testOpenAndFstatLog() throws IOException {
+    List<String> messages = new ArrayList<>();
+    Appender appender = Log.getAppender();
+    Log.setAppender((level, message) -> messages.add(level + " " + message));
+    try {
+      String script = "mount " + dir.resolve("image") + "\n"
+          + "create a\n"
+          + "open a\n"
+          + "fstat 0\n";
+      assertEquals(4, Console.batch(new BufferedReader(new StringReader(script))));
+    } finally {
+      Log.setAppender(appender);
+    }
+    assertTrue(messages.contains("INFO File [a] open with fd 0"), messages.toString());
+    assertTrue(messages.stream().anyMatch(message -> message.startsWith("INFO Descriptor{")),
+        messages.toString());
+  }
+}